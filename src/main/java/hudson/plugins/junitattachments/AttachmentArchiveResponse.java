@@ -0,0 +1,156 @@
+package hudson.plugins.junitattachments;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.FilePath;
+import jakarta.servlet.ServletException;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams a ZIP archive of attachments straight to the response, one file at a time,
+ * so neither a temporary file nor the whole archive is ever needed.
+ * <p>
+ * Symbolic links are only followed within the storage, see {@link AttachmentFileResponse#resolveFile}.
+ * Files in formats that are compressed already are stored as they are rather than deflated again.
+ * Attachments stored gzip-compressed, see {@link TextAttachments#compress}, are added decompressed
+ * under their original name when they are asked for by that name.
+ */
+final class AttachmentArchiveResponse implements HttpResponse {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path root;
+
+    /** Paths of the attachments to archive, relative to {@link #root}, or {@code null} for all files below it. */
+    @CheckForNull
+    private final Collection<String> paths;
+
+    private final String fileName;
+
+    /**
+     * @param storage the directory the attachments are in
+     * @param paths the attachments to archive, relative to the storage, or {@code null} to archive all of it
+     * @param fileName the name to offer for saving the archive
+     */
+    AttachmentArchiveResponse(FilePath storage, @CheckForNull Collection<String> paths, String fileName) {
+        this.root = new File(storage.getRemote()).toPath().normalize();
+        this.paths = paths;
+        this.fileName = fileName;
+    }
+
+    @Override
+    public void generateResponse(StaplerRequest2 req, StaplerResponse2 rsp, Object node)
+            throws IOException, ServletException {
+        rsp.setContentType("application/zip");
+        rsp.setHeader("Content-Disposition", "attachment; filename=\"" + fileName.replace("\"", "") + "\"");
+        rsp.setHeader("X-Content-Type-Options", "nosniff");
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(rsp.getOutputStream(), BUFFER_SIZE))) {
+            for (String path : listFiles()) {
+                add(zip, path);
+            }
+        }
+    }
+
+    private List<String> listFiles() throws IOException {
+        final List<String> files = new ArrayList<String>();
+        if (paths != null) {
+            for (String path : paths) {
+                Path file = root.resolve(path).normalize();
+                if (file.startsWith(root) && !file.equals(root)) {
+                    files.add(path);
+                }
+            }
+            return files;
+        }
+        if (!Files.isDirectory(root)) {
+            return files;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                // bookkeeping of the capture, not attachments
+                if (dir.getParent() != null && dir.getParent().equals(root)
+                        && dir.getFileName().toString().equals(AttachmentIndexFiles.DIRECTORY)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String name = file.getFileName().toString();
+                // bookkeeping of the capture, not an attachment
+                if (attrs.isRegularFile() && !name.equals(ChecksumManifest.FILE_NAME)) {
+                    files.add(root.relativize(file).toString().replace(File.separatorChar, '/'));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    private void add(ZipOutputStream zip, String path) throws IOException {
+        Path file = AttachmentFileResponse.resolveFile(root, path);
+        boolean decompress = false;
+        if (file == null) {
+            file = AttachmentFileResponse.resolveFile(root, path + TextAttachments.GZIP_SUFFIX);
+            if (file == null || Files.exists(root.resolve(path), LinkOption.NOFOLLOW_LINKS)) {
+                // deleted since it was captured, or a link out of the storage
+                return;
+            }
+            decompress = true;
+        }
+
+        ZipEntry entry = new ZipEntry(path);
+        entry.setTime(Files.getLastModifiedTime(file).toMillis());
+        if (!decompress && TextAttachments.isCompressed(path)) {
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(Files.size(file));
+            entry.setCompressedSize(Files.size(file));
+            entry.setCrc(crc(file));
+        }
+        zip.putNextEntry(entry);
+        try (InputStream in = open(file, decompress)) {
+            in.transferTo(zip);
+        }
+        zip.closeEntry();
+    }
+
+    private static InputStream open(Path file, boolean decompress) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        return decompress ? new GZIPInputStream(in, BUFFER_SIZE) : in;
+    }
+
+    /** A STORED entry needs its checksum before its content is written. */
+    private static long crc(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,160 @@
+package hudson.plugins.junitattachments;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Functions;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Limits how many bytes of attachments are captured per file, per test, per test class and per build.
+ * <p>
+ * Files are admitted one by one, in the order they are going to be copied, based on their size as found
+ * on the agent, so an oversized file is never sent at all. Text files that do not fit may be kept truncated
+ * to their first and last bytes instead of being skipped, see {@link AttachmentTransfer#setBudget}.
+ * A limit of {@code 0} or less means no limit.
+ */
+final class AttachmentBudget {
+
+    /** Truncating text files to fewer bytes than this leaves nothing worth reading. */
+    static final long MIN_TRUNCATED_SIZE = 1024;
+
+    /** How many skipped or truncated files {@link #printSummary} lists by name. */
+    private static final int MAX_LISTED = 20;
+
+    private final long maxFileBytes;
+    private final long maxTestBytes;
+    private final long maxClassBytes;
+    private final long maxBuildBytes;
+    private final boolean truncateText;
+
+    private final Map<String, Long> testBytes = new HashMap<String, Long>();
+    private final Map<String, Long> classBytes = new HashMap<String, Long>();
+    private long buildBytes;
+
+    private final List<String> skipped = new ArrayList<String>();
+    private int skippedCount;
+    private long skippedBytes;
+    private final List<String> truncated = new ArrayList<String>();
+    private int truncatedCount;
+
+    AttachmentBudget(long maxFileBytes, long maxTestBytes, long maxClassBytes, long maxBuildBytes, boolean truncateText) {
+        this.maxFileBytes = maxFileBytes;
+        this.maxTestBytes = maxTestBytes;
+        this.maxClassBytes = maxClassBytes;
+        this.maxBuildBytes = maxBuildBytes;
+        this.truncateText = truncateText;
+    }
+
+    /**
+     * Decides how much of a file to capture, and charges that against the budgets.
+     *
+     * @param path the destination of the file relative to the attachment storage, for the summary
+     * @param className the test class the file belongs to
+     * @param test the test the file belongs to, or {@code null} if it is attached to the test class as a whole
+     * @param size the size of the file
+     * @return {@code size} to capture the whole file, a smaller number of bytes to keep of a truncated text file,
+     *         or {@code -1} to skip the file
+     */
+    long admit(String path, String className, @CheckForNull String test, long size) {
+        long allowed = Long.MAX_VALUE;
+        String limit = null;
+        if (maxFileBytes > 0 && maxFileBytes < allowed) {
+            allowed = maxFileBytes;
+            limit = "the limit of " + format(maxFileBytes) + " per file";
+        }
+        if (test != null && maxTestBytes > 0) {
+            long left = maxTestBytes - get(testBytes, test);
+            if (left < allowed) {
+                allowed = left;
+                limit = "the limit of " + format(maxTestBytes) + " per test";
+            }
+        }
+        if (maxClassBytes > 0) {
+            long left = maxClassBytes - get(classBytes, className);
+            if (left < allowed) {
+                allowed = left;
+                limit = "the limit of " + format(maxClassBytes) + " per test class";
+            }
+        }
+        if (maxBuildBytes > 0) {
+            long left = maxBuildBytes - buildBytes;
+            if (left < allowed) {
+                allowed = left;
+                limit = "the limit of " + format(maxBuildBytes) + " per build";
+            }
+        }
+
+        long kept;
+        if (size <= allowed) {
+            kept = size;
+        } else if (truncateText && allowed >= MIN_TRUNCATED_SIZE && TextAttachments.isText(path)) {
+            kept = allowed;
+            truncatedCount++;
+            if (truncated.size() < MAX_LISTED) {
+                truncated.add(path + " (" + format(size) + "), kept " + format(kept) + " to stay within " + limit);
+            }
+        } else {
+            skippedCount++;
+            skippedBytes += size;
+            if (skipped.size() < MAX_LISTED) {
+                skipped.add(path + " (" + format(size) + ") exceeds " + limit);
+            }
+            return -1;
+        }
+
+        if (test != null) {
+            testBytes.put(test, get(testBytes, test) + kept);
+        }
+        classBytes.put(className, get(classBytes, className) + kept);
+        buildBytes += kept;
+        return kept;
+    }
+
+    private static long get(Map<String, Long> bytes, String key) {
+        Long value = bytes.get(key);
+        return value == null ? 0 : value;
+    }
+
+    /** Number of files that were skipped altogether. */
+    int getSkippedCount() {
+        return skippedCount;
+    }
+
+    /** Number of text files that were kept truncated. */
+    int getTruncatedCount() {
+        return truncatedCount;
+    }
+
+    /**
+     * Prints which files were skipped or truncated, if any.
+     */
+    void printSummary(PrintStream logger) {
+        if (skippedCount > 0) {
+            logger.println("Skipped " + skippedCount + " attachment files of " + format(skippedBytes)
+                    + " in total, which exceeded the attachment size limits:");
+            print(logger, skipped, skippedCount);
+        }
+        if (truncatedCount > 0) {
+            logger.println("Kept only the first and last bytes of " + truncatedCount
+                    + " text attachment files, which exceeded the attachment size limits:");
+            print(logger, truncated, truncatedCount);
+        }
+    }
+
+    private static void print(PrintStream logger, List<String> listed, int count) {
+        for (String line : listed) {
+            logger.println("  " + line);
+        }
+        if (count > listed.size()) {
+            logger.println("  ... and " + (count - listed.size()) + " more");
+        }
+    }
+
+    private static String format(long bytes) {
+        return Functions.humanReadableByteSize(bytes);
+    }
+}
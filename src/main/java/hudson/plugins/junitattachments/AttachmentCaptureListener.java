@@ -0,0 +1,40 @@
+package hudson.plugins.junitattachments;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a build from completing while its attachments are still being copied in the background,
+ * see {@link AttachmentCaptures}: its result, its log and anything triggered by its completion wait until
+ * the files arrived or copying them failed, which is then recorded, see {@link CaptureStatistics#isIncomplete()}.
+ * <p>
+ * This does not keep the agent the files are copied from in use. A freestyle build still holds its executor
+ * while completing, but a Pipeline releases the executor of a {@code node} block as soon as the block ends,
+ * before the build completes, so an agent that is removed or cleaned up right after that block may well
+ * take files with it that were not copied yet.
+ */
+@Extension
+public final class AttachmentCaptureListener extends RunListener<Run<?, ?>> {
+
+    private static final Logger LOGGER = Logger.getLogger(AttachmentCaptureListener.class.getName());
+
+    @Override
+    public void onCompleted(Run<?, ?> run, @NonNull TaskListener listener) {
+        if (!AttachmentCaptures.isCapturing(run)) {
+            return;
+        }
+        listener.getLogger().println("Waiting for the attachments to be copied from the workspace");
+        try {
+            AttachmentCaptures.await(run);
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Interrupted while waiting for the attachments of " + run, e);
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package hudson.plugins.junitattachments;
+
+import hudson.model.Run;
+import hudson.tasks.junit.TestResultAction;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies attachments in the background, after the {@code junit} step has returned, see
+ * {@link AttachmentPublisher#isCaptureAsynchronously()}, and keeps track of the builds whose attachments
+ * are still being captured.
+ * <p>
+ * Which captures are pending is only kept in memory: captures that were pending when the controller stopped
+ * are not resumed, and their builds stay {@linkplain #isIncomplete incomplete}, with whatever files arrived.
+ * <p>
+ * A build does not complete before its captures are done, see {@link AttachmentCaptureListener}.
+ */
+final class AttachmentCaptures {
+
+    private static final Logger LOGGER = Logger.getLogger(AttachmentCaptures.class.getName());
+
+    /** Number of captures that run at the same time, across all builds. */
+    private static final int THREADS = SystemProperties.getInteger(AttachmentCaptures.class.getName() + ".threads", 2);
+
+    private static final ExecutorService EXECUTOR;
+
+    static {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "junit-attachments background capture"));
+        executor.allowCoreThreadTimeOut(true);
+        EXECUTOR = executor;
+    }
+
+    /** Number of pending captures, keyed by {@link Run#getExternalizableId()}. */
+    private static final Map<String, Integer> PENDING = new ConcurrentHashMap<String, Integer>();
+
+    /** Notified whenever a capture is done. */
+    private static final Object DONE = new Object();
+
+    /** A capture to run in the background. */
+    interface Capture {
+        void run() throws Exception;
+    }
+
+    private AttachmentCaptures() {
+    }
+
+    /**
+     * Runs the given capture of attachments of the given build in the background.
+     */
+    static void submit(final Run<?, ?> run, final Capture capture) {
+        final String id = run.getExternalizableId();
+        PENDING.merge(id, 1, Integer::sum);
+        try {
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        capture.run();
+                    } catch (InterruptedException e) {
+                        LOGGER.log(Level.WARNING, "Interrupted while capturing the attachments of " + run, e);
+                        Thread.currentThread().interrupt();
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Failed to capture the attachments of " + run, e);
+                    } finally {
+                        done(id);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            done(id);
+            throw e;
+        }
+    }
+
+    private static void done(String id) {
+        PENDING.computeIfPresent(id, (key, count) -> count > 1 ? count - 1 : null);
+        synchronized (DONE) {
+            DONE.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the attachments of the given build are captured.
+     */
+    static void await(Run<?, ?> run) throws InterruptedException {
+        synchronized (DONE) {
+            while (isCapturing(run)) {
+                DONE.wait();
+            }
+        }
+    }
+
+    /**
+     * Whether some attachment files of the given build never arrived, see {@link CaptureStatistics#isIncomplete()}.
+     * This is also the case while they are still {@linkplain #isCapturing being captured}.
+     */
+    static boolean isIncomplete(Run<?, ?> run) {
+        TestResultAction action = run.getAction(TestResultAction.class);
+        if (action == null) {
+            return false;
+        }
+        for (TestResultAction.Data data : action.getData()) {
+            if (data instanceof AttachmentPublisher.Data) {
+                CaptureStatistics statistics = ((AttachmentPublisher.Data) data).getStatistics();
+                if (statistics != null && statistics.isIncomplete()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether attachments of the given build are still being captured.
+     */
+    static boolean isCapturing(Run<?, ?> run) {
+        return !PENDING.isEmpty() && PENDING.containsKey(run.getExternalizableId());
+    }
+}
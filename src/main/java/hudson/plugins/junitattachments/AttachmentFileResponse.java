@@ -0,0 +1,360 @@
+package hudson.plugins.junitattachments;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.FilePath;
+import hudson.model.DirectoryBrowserSupport;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletResponse;
+import jenkins.util.SystemProperties;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Serves a single attachment file, with support for conditional and range requests.
+ * <p>
+ * Every response carries an {@code ETag} and {@code Last-Modified}, so a browser revalidating an attachment
+ * gets a {@code 304} instead of the whole file again, and attachments of completed builds may be cached for long.
+ * {@code Range} requests make it possible to seek in videos and to resume downloads of large traces.
+ * The content is streamed from a {@link FileChannel}, so it is never held in memory as a whole.
+ * <p>
+ * An attachment that is stored gzip-compressed, see {@link TextAttachments#compress}, is sent as it is,
+ * with {@code Content-Encoding: gzip}, to clients accepting that, and decompressed on the fly for everyone else.
+ * Range requests are not supported for these.
+ */
+final class AttachmentFileResponse implements HttpResponse {
+
+    /** Attachments of completed builds do not change anymore. */
+    private static final String CACHE_IMMUTABLE = "private, max-age=31536000, immutable";
+
+    /** Attachments of running builds may still be replaced, by the next junit step of a pipeline for instance. */
+    private static final String CACHE_REVALIDATE = "private, no-cache";
+
+    /** The file as stored. */
+    private final File file;
+
+    /** Name of the attachment as requested, which determines the content type. */
+    private final String name;
+
+    /** Whether {@link #file} is the gzip-compressed form of the attachment. */
+    private final boolean compressed;
+
+    private final boolean immutable;
+
+    private AttachmentFileResponse(File file, String name, boolean compressed, boolean immutable) {
+        this.file = file;
+        this.name = name;
+        this.compressed = compressed;
+        this.immutable = immutable;
+    }
+
+    /**
+     * Returns a response for the attachment file at the given path below the storage.
+     *
+     * @param restOfPath the path of the attachment, as in {@link StaplerRequest2#getRestOfPath()}
+     * @param immutable whether the attachment will not change anymore, i.e. the build has completed
+     * @return {@code null} if there is no such attachment file, e.g. the path denotes a directory,
+     *         or the path is not below the storage
+     */
+    @CheckForNull
+    static AttachmentFileResponse forAttachment(FilePath storage, String restOfPath, boolean immutable) {
+        if (restOfPath == null || restOfPath.isEmpty() || restOfPath.endsWith("/")) {
+            return null;
+        }
+        Path root = new File(storage.getRemote()).toPath().normalize();
+        String relativePath = restOfPath.substring(restOfPath.startsWith("/") ? 1 : 0);
+        Path path = root.resolve(relativePath).normalize();
+        if (!path.startsWith(root) || path.equals(root)) {
+            return null;
+        }
+        String name = path.getFileName().toString();
+        Path file = resolveFile(root, relativePath);
+        if (file != null) {
+            return new AttachmentFileResponse(file.toFile(), name, false, immutable);
+        }
+        Path compressed = resolveFile(root, relativePath + TextAttachments.GZIP_SUFFIX);
+        if (compressed != null && !Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return new AttachmentFileResponse(compressed.toFile(), name, true, immutable);
+        }
+        return null;
+    }
+
+    /**
+     * Resolves a path below the storage to the regular file it denotes.
+     * Symbolic links are followed only as long as they stay within the storage: the attachments of
+     * older builds may contain links recreated from a workspace, which point to any file on the controller.
+     *
+     * @param root the normalized path of the storage
+     * @return the real path of the file, or {@code null} if there is no such file within the storage
+     */
+    @CheckForNull
+    static Path resolveFile(Path root, String relativePath) {
+        Path path = root.resolve(relativePath).normalize();
+        if (!path.startsWith(root) || path.equals(root)) {
+            return null;
+        }
+        try {
+            Path real = path.toRealPath();
+            if (!real.startsWith(root.toRealPath()) || !Files.isRegularFile(real)) {
+                return null;
+            }
+            return real;
+        } catch (IOException e) {
+            // does not exist
+            return null;
+        }
+    }
+
+    /**
+     * Returns a response for a file that is not stored compressed.
+     *
+     * @param name the name that determines the content type
+     */
+    static AttachmentFileResponse forFile(File file, String name, boolean immutable) {
+        return new AttachmentFileResponse(file, name, false, immutable);
+    }
+
+    /** The file as stored. */
+    File getFile() {
+        return file;
+    }
+
+    /** Whether {@link #getFile()} is the gzip-compressed form of the attachment. */
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    @Override
+    public void generateResponse(StaplerRequest2 req, StaplerResponse2 rsp, Object node)
+            throws IOException, ServletException {
+        String contentType = req.getServletContext().getMimeType(name);
+        rsp.setContentType(contentType != null ? contentType : "application/octet-stream");
+        // same protection DirectoryBrowserSupport applies to files it serves
+        String csp = SystemProperties.getString(DirectoryBrowserSupport.CSP_PROPERTY_NAME, DirectoryBrowserSupport.DEFAULT_CSP_VALUE);
+        if (!csp.trim().isEmpty()) {
+            rsp.setHeader("Content-Security-Policy", csp);
+        }
+        rsp.setHeader("X-Content-Type-Options", "nosniff");
+
+        boolean gzip = compressed && acceptsGzip(req.getHeader("Accept-Encoding"));
+        long length = file.length();
+        long lastModified = file.lastModified();
+        String etag = '"' + Long.toHexString(length) + '-' + Long.toHexString(lastModified)
+                + (compressed ? gzip ? "-gzip" : "-identity" : "") + '"';
+        if (compressed) {
+            rsp.addHeader("Vary", "Accept-Encoding");
+        }
+        rsp.setHeader("ETag", etag);
+        rsp.setDateHeader("Last-Modified", lastModified);
+        rsp.setHeader("Cache-Control", immutable ? CACHE_IMMUTABLE : CACHE_REVALIDATE);
+
+        if (isNotModified(req, etag, lastModified)) {
+            rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        boolean head = "HEAD".equals(req.getMethod());
+
+        if (compressed && !gzip) {
+            // the decompressed length is not known upfront
+            rsp.setHeader("Accept-Ranges", "none");
+            if (!head) {
+                try (InputStream in = new GZIPInputStream(Files.newInputStream(file.toPath()), 64 * 1024);
+                     OutputStream out = rsp.getOutputStream()) {
+                    in.transferTo(out);
+                }
+            }
+            return;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        if (gzip) {
+            rsp.setHeader("Content-Encoding", "gzip");
+            rsp.setHeader("Accept-Ranges", "none");
+        } else {
+            rsp.setHeader("Accept-Ranges", "bytes");
+            String range = req.getHeader("Range");
+            if (range != null && isCurrent(req.getHeader("If-Range"), etag, lastModified)) {
+                long[] r = parseRange(range, length);
+                if (r != null && r.length == 0) {
+                    rsp.setHeader("Content-Range", "bytes */" + length);
+                    rsp.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return;
+                }
+                if (r != null) {
+                    start = r[0];
+                    end = r[1];
+                    rsp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                    rsp.setHeader("Content-Range", "bytes " + start + '-' + end + '/' + length);
+                }
+            }
+        }
+        rsp.setContentLengthLong(end - start + 1);
+        if (!head) {
+            send(start, end - start + 1, rsp);
+        }
+    }
+
+    private void send(long position, long count, StaplerResponse2 rsp) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             OutputStream out = rsp.getOutputStream()) {
+            WritableByteChannel target = Channels.newChannel(out);
+            while (count > 0) {
+                long sent = channel.transferTo(position, count, target);
+                if (sent <= 0) {
+                    // the file was truncated since its length was taken
+                    break;
+                }
+                position += sent;
+                count -= sent;
+            }
+        }
+    }
+
+    private static boolean isNotModified(StaplerRequest2 req, String etag, long lastModified) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matches(ifNoneMatch, etag);
+        }
+        long ifModifiedSince = getDateHeader(req, "If-Modified-Since");
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * Whether an {@code If-Range} header, if any, still denotes the current content.
+     */
+    private static boolean isCurrent(@CheckForNull String ifRange, String etag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // If-Range requires a strong comparison
+            return ifRange.equals(etag);
+        }
+        // an HTTP date, which is only precise to the second
+        return ifRange.equals(formatDate(lastModified));
+    }
+
+    private static String formatDate(long time) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(time / 1000 * 1000).atZone(ZoneOffset.UTC));
+    }
+
+    private static long getDateHeader(StaplerRequest2 req, String name) {
+        try {
+            return req.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            // not a date, so ignore it
+            return -1;
+        }
+    }
+
+    /**
+     * Whether the {@code If-None-Match} header matches the given entity tag, using the weak comparison.
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || stripWeak(tag).equals(stripWeak(etag))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * Parses a {@code Range} header for a single byte range.
+     *
+     * @return the first and last position of the range, an empty array if the range cannot be satisfied,
+     *         or {@code null} if the header should be ignored, such as for multiple ranges
+     */
+    @CheckForNull
+    static long[] parseRange(String range, long length) {
+        range = range.trim();
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // the final bytes
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return new long[0];
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                if (start < 0 || end < start) {
+                    return null;
+                }
+                end = Math.min(end, length - 1);
+            }
+            if (start >= length) {
+                return new long[0];
+            }
+            return new long[] {start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Whether an {@code Accept-Encoding} header allows gzip.
+     */
+    static boolean acceptsGzip(@CheckForNull String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Boolean wildcard = null;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String token = parts[0].trim().toLowerCase(Locale.ENGLISH);
+            boolean accepted = true;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim().replace(" ", "");
+                if (param.startsWith("q=") && param.substring(2).matches("0(\\.0{0,3})?")) {
+                    accepted = false;
+                }
+            }
+            if (token.equals("gzip") || token.equals("x-gzip")) {
+                return accepted;
+            }
+            if (token.equals("*")) {
+                wildcard = accepted;
+            }
+        }
+        return wildcard != null && wildcard;
+    }
+}
@@ -0,0 +1,192 @@
+package hudson.plugins.junitattachments;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The attachment file names of all tests of a build, in a compact form that is cheap to keep in memory.
+ * <p>
+ * Every distinct class, test and file name is kept once in a sorted string table, with the names interned,
+ * so names repeated across builds are shared as well. Classes and their tests are sorted arrays of indices
+ * into the table, and can be looked up by binary search. The files of each test keep their order.
+ * <p>
+ * Lookups return new, mutable collections, just like the maps this replaces.
+ */
+final class AttachmentIndex {
+
+    /** All names, sorted, so the order of their indices is the order of the names. */
+    private final String[] strings;
+
+    /** The classes, sorted. */
+    private final int[] classes;
+
+    /** The tests of {@code classes[i]} are {@code tests[testStart[i]]} up to before {@code tests[testStart[i + 1]]}. */
+    private final int[] testStart;
+
+    /** The tests of each class, sorted. */
+    private final int[] tests;
+
+    /** The files of {@code tests[i]} are {@code files[fileStart[i]]} up to before {@code files[fileStart[i + 1]]}. */
+    private final int[] fileStart;
+
+    /** The files of each test, in their original order. */
+    private final int[] files;
+
+    private AttachmentIndex(String[] strings, int[] classes, int[] testStart, int[] tests, int[] fileStart, int[] files) {
+        this.strings = strings;
+        this.classes = classes;
+        this.testStart = testStart;
+        this.tests = tests;
+        this.fileStart = fileStart;
+        this.files = files;
+    }
+
+    /**
+     * @param attachments { fully-qualified test class name → { test method name → [ attachment file name ] } }
+     */
+    static AttachmentIndex of(@CheckForNull Map<String, Map<String, List<String>>> attachments) {
+        if (attachments == null) {
+            attachments = Map.of();
+        }
+        TreeSet<String> names = new TreeSet<String>();
+        int testCount = 0;
+        int fileCount = 0;
+        for (Map.Entry<String, Map<String, List<String>>> c : attachments.entrySet()) {
+            names.add(c.getKey());
+            for (Map.Entry<String, List<String>> t : c.getValue().entrySet()) {
+                names.add(t.getKey());
+                if (t.getValue() != null) {
+                    names.addAll(t.getValue());
+                    fileCount += t.getValue().size();
+                }
+                testCount++;
+            }
+        }
+        String[] strings = new String[names.size()];
+        int n = 0;
+        for (String name : names) {
+            strings[n++] = name.intern();
+        }
+
+        TreeMap<String, Map<String, List<String>>> sortedClasses = new TreeMap<String, Map<String, List<String>>>(attachments);
+        int[] classes = new int[sortedClasses.size()];
+        int[] testStart = new int[classes.length + 1];
+        int[] tests = new int[testCount];
+        int[] fileStart = new int[testCount + 1];
+        int[] files = new int[fileCount];
+        int c = 0;
+        int t = 0;
+        int f = 0;
+        for (Map.Entry<String, Map<String, List<String>>> classEntry : sortedClasses.entrySet()) {
+            classes[c] = Arrays.binarySearch(strings, classEntry.getKey());
+            testStart[c++] = t;
+            for (Map.Entry<String, List<String>> testEntry : new TreeMap<String, List<String>>(classEntry.getValue()).entrySet()) {
+                tests[t] = Arrays.binarySearch(strings, testEntry.getKey());
+                fileStart[t++] = f;
+                if (testEntry.getValue() != null) {
+                    for (String file : testEntry.getValue()) {
+                        files[f++] = Arrays.binarySearch(strings, file);
+                    }
+                }
+            }
+        }
+        testStart[c] = t;
+        fileStart[t] = f;
+        return new AttachmentIndex(strings, classes, testStart, tests, fileStart, files);
+    }
+
+    boolean isEmpty() {
+        return classes.length == 0;
+    }
+
+    /** Returns the number of test classes with attachments. */
+    int getClassCount() {
+        return classes.length;
+    }
+
+    /** Returns the fully-qualified names of all test classes with attachments, sorted. */
+    List<String> getClasses() {
+        List<String> names = new ArrayList<String>(classes.length);
+        for (int c : classes) {
+            names.add(strings[c]);
+        }
+        return names;
+    }
+
+    /**
+     * Returns the attachments of all tests of the given class, sorted by test name.
+     *
+     * @return {@code null} if the class has no attachments
+     */
+    @CheckForNull
+    TreeMap<String, List<String>> getTests(String className) {
+        int c = indexOf(classes, 0, classes.length, className);
+        if (c < 0) {
+            return null;
+        }
+        TreeMap<String, List<String>> result = new TreeMap<String, List<String>>();
+        for (int t = testStart[c]; t < testStart[c + 1]; t++) {
+            result.put(strings[tests[t]], getFiles(t));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the attachments of the given test, in the order they were found.
+     *
+     * @return {@code null} if the test is not known
+     */
+    @CheckForNull
+    List<String> getAttachments(String className, String testName) {
+        int c = indexOf(classes, 0, classes.length, className);
+        if (c < 0) {
+            return null;
+        }
+        int t = indexOf(tests, testStart[c], testStart[c + 1], testName);
+        return t < 0 ? null : getFiles(t);
+    }
+
+    /**
+     * Returns all attachments in the nested map form this index was created from, for serialization.
+     */
+    Map<String, Map<String, List<String>>> toMap() {
+        Map<String, Map<String, List<String>>> result = new HashMap<String, Map<String, List<String>>>();
+        for (int c = 0; c < classes.length; c++) {
+            Map<String, List<String>> testMap = new HashMap<String, List<String>>();
+            for (int t = testStart[c]; t < testStart[c + 1]; t++) {
+                testMap.put(strings[tests[t]], getFiles(t));
+            }
+            result.put(strings[classes[c]], testMap);
+        }
+        return result;
+    }
+
+    private List<String> getFiles(int t) {
+        List<String> result = new ArrayList<String>(fileStart[t + 1] - fileStart[t]);
+        for (int f = fileStart[t]; f < fileStart[t + 1]; f++) {
+            result.add(strings[files[f]]);
+        }
+        return result;
+    }
+
+    /**
+     * Finds the position of the given name within the given sorted range of indices.
+     *
+     * @return the position, or -1 if the name is not in the range
+     */
+    private int indexOf(int[] indices, int from, int to, String name) {
+        int s = Arrays.binarySearch(strings, name);
+        if (s < 0) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(indices, from, to, s);
+        return i >= 0 ? i : -1;
+    }
+}
@@ -0,0 +1,107 @@
+package hudson.plugins.junitattachments;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.XmlFile;
+import hudson.model.Run;
+import hudson.util.XStream2;
+import jenkins.util.SystemProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the {@link AttachmentIndex} of each {@link AttachmentPublisher.Data} in a file of its own below the
+ * attachment storage of the build, rather than in the build record, so that it is only read when attachments
+ * are actually looked at, and not whenever test results are loaded, e.g. for trend graphs.
+ * <p>
+ * Indexes that were read are shared across builds in a cache of bounded size, and only softly referenced,
+ * so they never keep the controller from reclaiming the memory.
+ * <p>
+ * This is off unless {@link #ENABLED}: earlier versions only read the attachments from the build record,
+ * so they show no attachments for builds recorded with this on, should the plugin be downgraded.
+ */
+final class AttachmentIndexFiles {
+
+    private static final Logger LOGGER = Logger.getLogger(AttachmentIndexFiles.class.getName());
+
+    /** Directory below the attachment storage of a build that holds the index files. */
+    static final String DIRECTORY = ".index";
+
+    /** Whether new indexes are written to files of their own, rather than to the build record. */
+    @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "non-final for the script console and tests")
+    static boolean ENABLED = SystemProperties.getBoolean(AttachmentIndexFiles.class.getName() + ".enabled");
+
+    /** Maximum number of indexes kept in memory, across all builds. */
+    private static final int CACHE_SIZE = SystemProperties.getInteger(AttachmentIndexFiles.class.getName() + ".cacheSize", 100);
+
+    private static final XStream2 XSTREAM = new XStream2();
+
+    /** Most recently used last. */
+    private static final Map<String, SoftReference<AttachmentIndex>> CACHE =
+            new LinkedHashMap<String, SoftReference<AttachmentIndex>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SoftReference<AttachmentIndex>> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private AttachmentIndexFiles() {
+    }
+
+    /**
+     * Writes the given index to a new file of the given build.
+     *
+     * @return the name of the file, for {@link #read}
+     */
+    static String write(Run<?, ?> run, AttachmentIndex index) throws IOException {
+        String name = UUID.randomUUID() + ".xml";
+        File file = getFile(run, name);
+        new XmlFile(XSTREAM, file).write(index.toMap());
+        put(file, index);
+        return name;
+    }
+
+    /**
+     * Returns the index in the given file of the given build, reading it unless it is cached.
+     *
+     * @return the index, which is empty if the file cannot be read
+     */
+    @SuppressWarnings("unchecked")
+    static AttachmentIndex read(Run<?, ?> run, String name) {
+        File file = getFile(run, name);
+        synchronized (CACHE) {
+            SoftReference<AttachmentIndex> ref = CACHE.get(file.getPath());
+            AttachmentIndex index = ref == null ? null : ref.get();
+            if (index != null) {
+                return index;
+            }
+        }
+        // read without holding the lock, the worst that can happen is that two threads both read the file
+        AttachmentIndex index;
+        try {
+            index = AttachmentIndex.of((Map<String, Map<String, List<String>>>) new XmlFile(XSTREAM, file).read());
+        } catch (IOException | ClassCastException e) {
+            LOGGER.log(Level.WARNING, "Failed to read the attachment index " + file + " of " + run, e);
+            return AttachmentIndex.of(null);
+        }
+        put(file, index);
+        return index;
+    }
+
+    private static void put(File file, AttachmentIndex index) {
+        synchronized (CACHE) {
+            CACHE.put(file.getPath(), new SoftReference<AttachmentIndex>(index));
+        }
+    }
+
+    private static File getFile(Run<?, ?> run, String name) {
+        return new File(new File(AttachmentPublisher.getAttachmentPath(run).getRemote(), DIRECTORY), name);
+    }
+}
@@ -0,0 +1,184 @@
+package hudson.plugins.junitattachments;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Turns every occurrence of an attachment name in some text into a link to that attachment.
+ * <p>
+ * All names are looked for at once, in a single left-to-right pass of an Aho-Corasick automaton,
+ * so the cost is linear in the length of the text plus the number of occurrences, however many attachments there are.
+ * Where occurrences overlap, the leftmost one wins, and of those starting at the same position the longest one.
+ * Links are only inserted into the original text, so a name is never matched within a link inserted for another name.
+ */
+final class AttachmentLinkifier {
+
+    /** Transitions of the root for ASCII characters, where most of the text is looked up. */
+    private final int[] rootTransitions = new int[128];
+
+    /** Per node, the characters it has transitions for, sorted. */
+    private final char[][] keys;
+
+    /** Per node, the targets of the transitions for {@link #keys}. */
+    private final int[][] targets;
+
+    /** Per node, the node of the longest proper suffix of its string that is in the trie. */
+    private final int[] fail;
+
+    /** Per node, the nearest node in the chain of {@link #fail} links that completes a name, or 0. */
+    private final int[] dictionary;
+
+    /** Per node, the length of its string if that is a name, or 0. */
+    private final int[] lengths;
+
+    AttachmentLinkifier(Collection<String> names) {
+        // build the trie
+        List<TreeMap<Character, Integer>> trie = new ArrayList<TreeMap<Character, Integer>>();
+        List<Integer> nameLengths = new ArrayList<Integer>();
+        trie.add(new TreeMap<Character, Integer>());
+        nameLengths.add(0);
+        for (String name : names) {
+            if (name.isEmpty()) {
+                continue;
+            }
+            int node = 0;
+            for (int i = 0; i < name.length(); i++) {
+                Integer next = trie.get(node).get(name.charAt(i));
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(new TreeMap<Character, Integer>());
+                    nameLengths.add(0);
+                    trie.get(node).put(name.charAt(i), next);
+                }
+                node = next;
+            }
+            nameLengths.set(node, name.length());
+        }
+
+        int size = trie.size();
+        keys = new char[size][];
+        targets = new int[size][];
+        lengths = new int[size];
+        for (int node = 0; node < size; node++) {
+            Map<Character, Integer> transitions = trie.get(node);
+            keys[node] = new char[transitions.size()];
+            targets[node] = new int[transitions.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> t : transitions.entrySet()) {
+                keys[node][i] = t.getKey();
+                targets[node][i] = t.getValue();
+                i++;
+            }
+            lengths[node] = nameLengths.get(node);
+        }
+        for (int i = 0; i < keys[0].length; i++) {
+            if (keys[0][i] < rootTransitions.length) {
+                rootTransitions[keys[0][i]] = targets[0][i];
+            }
+        }
+
+        // breadth first, so the failure links of shallower nodes are known when they are needed
+        fail = new int[size];
+        dictionary = new int[size];
+        int[] queue = new int[size];
+        int head = 0;
+        int tail = 0;
+        for (int child : targets[0]) {
+            queue[tail++] = child;
+        }
+        while (head < tail) {
+            int node = queue[head++];
+            for (int i = 0; i < keys[node].length; i++) {
+                int child = targets[node][i];
+                int f = transition(fail[node], keys[node][i]);
+                fail[child] = f;
+                dictionary[child] = lengths[f] > 0 ? f : dictionary[f];
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    /**
+     * Returns the given text with every attachment name replaced by a link to {@code url} followed by the name.
+     *
+     * @return the text itself if it contains no attachment name
+     */
+    String linkify(String text, String url) {
+        long[] matches = findMatches(text);
+        if (matches.length == 0) {
+            return text;
+        }
+        // leftmost first, and the longest of those starting at the same position
+        Arrays.sort(matches);
+
+        // pick the matches to link, and how long the result will be
+        int picked = 0;
+        int end = 0;
+        long length = text.length();
+        for (long match : matches) {
+            int start = (int) (match >>> 32);
+            int matchLength = Integer.MAX_VALUE - (int) match;
+            if (start >= end) {
+                matches[picked++] = match;
+                end = start + matchLength;
+                length += "<a href=\"".length() + url.length() + matchLength + "\">".length() + "</a>".length();
+            }
+        }
+
+        StringBuilder buf = new StringBuilder((int) Math.min(Integer.MAX_VALUE - 8, length));
+        int position = 0;
+        for (int i = 0; i < picked; i++) {
+            int start = (int) (matches[i] >>> 32);
+            int matchLength = Integer.MAX_VALUE - (int) matches[i];
+            buf.append(text, position, start)
+                    .append("<a href=\"").append(url).append(text, start, start + matchLength).append("\">")
+                    .append(text, start, start + matchLength).append("</a>");
+            position = start + matchLength;
+        }
+        return buf.append(text, position, text.length()).toString();
+    }
+
+    /**
+     * Finds all occurrences of all names, encoded as the start in the upper and
+     * {@code Integer.MAX_VALUE - length} in the lower half, so that they sort leftmost and then longest first.
+     */
+    private long[] findMatches(String text) {
+        long[] matches = new long[0];
+        int count = 0;
+        int node = 0;
+        for (int i = 0; i < text.length(); i++) {
+            node = transition(node, text.charAt(i));
+            for (int n = lengths[node] > 0 ? node : dictionary[node]; n != 0; n = dictionary[n]) {
+                if (count == matches.length) {
+                    matches = Arrays.copyOf(matches, Math.max(16, count * 2));
+                }
+                int start = i + 1 - lengths[n];
+                matches[count++] = ((long) start << 32) | (Integer.MAX_VALUE - lengths[n]);
+            }
+        }
+        return Arrays.copyOf(matches, count);
+    }
+
+    private int transition(int node, char c) {
+        while (true) {
+            if (node == 0) {
+                return c < rootTransitions.length ? rootTransitions[c] : find(0, c);
+            }
+            int next = find(node, c);
+            if (next != 0) {
+                return next;
+            }
+            node = fail[node];
+        }
+    }
+
+    /** The target of the transition of the given node for the given character, or 0 if there is none. */
+    private int find(int node, char c) {
+        int i = Arrays.binarySearch(keys[node], c);
+        return i >= 0 ? targets[node][i] : 0;
+    }
+}
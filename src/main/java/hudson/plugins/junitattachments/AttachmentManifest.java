@@ -0,0 +1,69 @@
+package hudson.plugins.junitattachments;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves a batch of workspace paths on the agent in a single call, returning what kind of file each one is,
+ * together with its size and modification time.
+ * <p>
+ * This replaces separate {@code isDirectory()}/{@code exists()} round trips for every referenced attachment.
+ */
+final class AttachmentManifest extends MasterToSlaveFileCallable<Map<String, AttachmentManifest.FileInfo>> {
+    private static final long serialVersionUID = 1L;
+
+    /** Remote paths to resolve, as returned by {@link hudson.FilePath#getRemote()}. */
+    private final Set<String> paths;
+
+    AttachmentManifest(Collection<String> paths) {
+        this.paths = new LinkedHashSet<String>(paths);
+    }
+
+    @Override
+    public Map<String, FileInfo> invoke(File workspace, VirtualChannel channel) {
+        Map<String, FileInfo> manifest = new HashMap<String, FileInfo>();
+        for (String path : paths) {
+            manifest.put(path, FileInfo.of(new File(path)));
+        }
+        return manifest;
+    }
+
+    enum Kind {
+        FILE, DIRECTORY, MISSING
+    }
+
+    /** What the agent found at a given path. */
+    static final class FileInfo implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        static final FileInfo MISSING = new FileInfo(Kind.MISSING, 0, 0);
+
+        final Kind kind;
+        final long size;
+        final long lastModified;
+
+        FileInfo(Kind kind, long size, long lastModified) {
+            this.kind = kind;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        static FileInfo of(File f) {
+            if (f.isDirectory()) {
+                return new FileInfo(Kind.DIRECTORY, 0, f.lastModified());
+            }
+            if (f.exists()) {
+                return new FileInfo(Kind.FILE, f.length(), f.lastModified());
+            }
+            return MISSING;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package hudson.plugins.junitattachments;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds attachment markers, i.e. instances of:
+ * <pre>[[ATTACHMENT|/path/to/attached-file.xyz|...reserved...]]</pre>
+ * <p>
+ * This is a single-pass state machine: every character is looked at exactly once, nothing is concatenated
+ * and nothing is backtracked, so the cost is linear in the length of the output even for long lines
+ * without a closing {@code ]]}. Text can be fed in chunks, so a marker may span several calls to {@link #feed}.
+ * <p>
+ * A marker must start and end on the same line. The path ends at the first {@code |} or {@code ]]}.
+ */
+final class AttachmentMarkerScanner {
+
+    /** Receives the markers found by the scanner. */
+    interface Sink {
+        /**
+         * @param path the attachment path of the marker
+         * @param start offset of the opening {@code [[} in the scanned text
+         * @param end offset just after the closing {@code ]]} in the scanned text
+         */
+        void onMarker(String path, long start, long end);
+    }
+
+    static final String PREFIX = "[[ATTACHMENT|";
+
+    /** Longer paths are not valid on any platform we run on, so don't keep buffering them. */
+    private static final int MAX_PATH_LENGTH = 32767;
+
+    private static final int SEARCHING = 0;
+    private static final int IN_PATH = 1;
+    private static final int IN_RESERVED = 2;
+
+    private final Sink sink;
+    private final StringBuilder path = new StringBuilder();
+
+    private int state;
+    /** Number of characters of {@link #PREFIX} matched so far, while {@link #SEARCHING}. */
+    private int matched;
+    /** Whether the previous character was a single {@code ]}, while inside a marker. */
+    private boolean bracket;
+    private long position;
+    private long markerStart;
+
+    AttachmentMarkerScanner(Sink sink) {
+        this.sink = sink;
+    }
+
+    /** Forgets any partial marker and restarts offsets at zero, so the next text is scanned on its own. */
+    void reset() {
+        state = SEARCHING;
+        matched = 0;
+        bracket = false;
+        position = 0;
+        path.setLength(0);
+    }
+
+    void feed(CharSequence text) {
+        for (int i = 0, n = text.length(); i < n; i++) {
+            accept(text.charAt(i));
+        }
+    }
+
+    void feed(char[] text, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            accept(text[i]);
+        }
+    }
+
+    private void accept(char c) {
+        switch (state) {
+            case SEARCHING:
+                if (c == PREFIX.charAt(matched)) {
+                    if (++matched == PREFIX.length()) {
+                        state = IN_PATH;
+                        markerStart = position - (PREFIX.length() - 1);
+                        bracket = false;
+                        path.setLength(0);
+                    }
+                } else if (c == '[') {
+                    // "[[[" still ends with the "[[" that opens a marker
+                    matched = matched == 2 ? 2 : 1;
+                } else {
+                    matched = 0;
+                }
+                break;
+            case IN_PATH:
+                if (isLineTerminator(c) || path.length() >= MAX_PATH_LENGTH) {
+                    restart();
+                } else if (c == '|') {
+                    state = IN_RESERVED;
+                    bracket = false;
+                } else if (c == ']' && bracket) {
+                    path.setLength(path.length() - 1);
+                    emit();
+                } else {
+                    bracket = c == ']';
+                    path.append(c);
+                }
+                break;
+            case IN_RESERVED:
+                if (isLineTerminator(c)) {
+                    restart();
+                } else if (c == ']' && bracket) {
+                    emit();
+                } else {
+                    bracket = c == ']';
+                }
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+        position++;
+    }
+
+    private void emit() {
+        if (path.length() > 0) {
+            sink.onMarker(path.toString(), markerStart, position + 1);
+        }
+        restart();
+    }
+
+    private void restart() {
+        state = SEARCHING;
+        matched = 0;
+        bracket = false;
+    }
+
+    private static boolean isLineTerminator(char c) {
+        // same set as '.' excludes in java.util.regex.Pattern
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * Returns the paths of all markers in the given text, in order of appearance.
+     */
+    static List<String> findPaths(CharSequence text) {
+        final List<String> paths = new ArrayList<String>();
+        new AttachmentMarkerScanner(new Sink() {
+            @Override
+            public void onMarker(String path, long start, long end) {
+                paths.add(path);
+            }
+        }).feed(text);
+        return paths;
+    }
+
+    /**
+     * Returns the given text with all markers removed, or the text itself if it has none.
+     */
+    static String removeMarkers(final String text) {
+        final StringBuilder[] out = new StringBuilder[1];
+        final int[] copied = new int[1];
+        new AttachmentMarkerScanner(new Sink() {
+            @Override
+            public void onMarker(String path, long start, long end) {
+                if (out[0] == null) {
+                    out[0] = new StringBuilder(text.length());
+                }
+                out[0].append(text, copied[0], (int) start);
+                copied[0] = (int) end;
+            }
+        }).feed(text);
+        if (out[0] == null) {
+            return text;
+        }
+        return out[0].append(text, copied[0], text.length()).toString();
+    }
+}
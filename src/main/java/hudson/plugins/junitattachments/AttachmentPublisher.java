@@ -16,6 +16,7 @@ import hudson.tasks.junit.TestResultAction;
 import hudson.tasks.junit.CaseResult;
 import hudson.tasks.junit.ClassResult;
 import hudson.tasks.test.TestObject;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import org.kohsuke.stapler.DataBoundSetter;
 
 import java.io.File;
@@ -23,14 +24,38 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class AttachmentPublisher extends TestDataPublisher {
 
+    private static final Logger LOGGER = Logger.getLogger(AttachmentPublisher.class.getName());
+
+    private static final int DEFAULT_PREVIOUS_FAILURE_BUILDS = 3;
+
     private Boolean showAttachmentsAtClassLevel = true;
     private Boolean showAttachmentsInStdOut = true;
+    private boolean scanReportsOnAgent;
+    private int captureThreads = 1;
+    private boolean deduplicateAttachments;
+    private boolean reuseUnchangedAttachments;
+    private boolean linkLocalAttachments;
+    private boolean compressTextAttachments;
+    private boolean storeTextAttachmentsCompressed;
+    private boolean captureAsynchronously;
+    private CapturePolicy capturePolicy;
+    private int previousFailureBuilds = DEFAULT_PREVIOUS_FAILURE_BUILDS;
+    private long maxFileSize;
+    private long maxTestSize;
+    private long maxClassSize;
+    private long maxBuildSize;
+    private boolean truncateOversizedText;
 
     @DataBoundConstructor
     public AttachmentPublisher() {
@@ -44,6 +69,142 @@ public class AttachmentPublisher extends TestDataPublisher {
         return showAttachmentsInStdOut != null ? showAttachmentsInStdOut : true;
     }
 
+    /**
+     * Whether attachment markers are found by streaming the report files on the agent,
+     * rather than by scanning the test output held by the parsed test results on the controller.
+     */
+    public boolean isScanReportsOnAgent() {
+        return scanReportsOnAgent;
+    }
+
+    /**
+     * Number of threads capturing attachments of different test classes concurrently.
+     * With more than one, the test classes are split into that many batches, each copied in its own stream.
+     */
+    public int getCaptureThreads() {
+        return Math.max(1, captureThreads);
+    }
+
+    /**
+     * Whether attachment files are stored once per job by their content, and linked into the builds attaching them.
+     */
+    public boolean isDeduplicateAttachments() {
+        return deduplicateAttachments;
+    }
+
+    /**
+     * Whether attachment files that have the same path and content as in the previous build are linked
+     * from that build, rather than being transferred again.
+     */
+    public boolean isReuseUnchangedAttachments() {
+        return reuseUnchangedAttachments;
+    }
+
+    /**
+     * Whether attachments are hard-linked rather than copied when the workspace is on the controller file system.
+     * The attachments then change along with the workspace files if those are modified in place later on.
+     */
+    public boolean isLinkLocalAttachments() {
+        return linkLocalAttachments;
+    }
+
+    /**
+     * Whether text attachments such as logs, JSON and XML are compressed while they are sent from an agent.
+     */
+    public boolean isCompressTextAttachments() {
+        return compressTextAttachments;
+    }
+
+    /**
+     * Whether text attachments are stored gzip-compressed in the build directory.
+     * They are still served under their original names.
+     */
+    public boolean isStoreTextAttachmentsCompressed() {
+        return storeTextAttachmentsCompressed;
+    }
+
+    /**
+     * Whether the attachment files are only listed while the test results are recorded, and copied in the
+     * background afterwards, so that the build can go on meanwhile. The workspace files must then stay in place
+     * for a while after the test results were recorded.
+     * <p>
+     * The build does not complete before the files arrived, see {@link AttachmentCaptureListener}, so this saves
+     * the time of the steps that run meanwhile rather than executor time. Files that could not be copied, e.g. as
+     * the agent went away, are recorded as missing rather than failing the build.
+     */
+    public boolean isCaptureAsynchronously() {
+        return captureAsynchronously;
+    }
+
+    /**
+     * Which tests attachments are captured for. Attachments of other tests are skipped before anything is copied.
+     */
+    public CapturePolicy getCapturePolicy() {
+        return capturePolicy != null ? capturePolicy : CapturePolicy.ALL;
+    }
+
+    /**
+     * Number of previous builds to look for failures in, for {@link CapturePolicy#FAILED_AND_PREVIOUS_FAILURES}.
+     */
+    public int getPreviousFailureBuilds() {
+        return previousFailureBuilds > 0 ? previousFailureBuilds : DEFAULT_PREVIOUS_FAILURE_BUILDS;
+    }
+
+    /**
+     * Maximum size of a single attachment file in megabytes, or {@code 0} for no limit.
+     */
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    /**
+     * Maximum size of the attachments of a single test in megabytes, or {@code 0} for no limit.
+     */
+    public long getMaxTestSize() {
+        return maxTestSize;
+    }
+
+    /**
+     * Maximum size of the attachments of a single test class in megabytes, including those of its tests,
+     * or {@code 0} for no limit.
+     */
+    public long getMaxClassSize() {
+        return maxClassSize;
+    }
+
+    /**
+     * Maximum size of all attachments captured at once in megabytes, or {@code 0} for no limit.
+     */
+    public long getMaxBuildSize() {
+        return maxBuildSize;
+    }
+
+    /**
+     * Whether text attachments exceeding a size limit are kept truncated to their first and last bytes,
+     * rather than being skipped.
+     */
+    public boolean isTruncateOversizedText() {
+        return truncateOversizedText;
+    }
+
+    /**
+     * Creates the budget enforcing the size limits for a single capture.
+     *
+     * @return {@code null} if there are no limits
+     */
+    @CheckForNull
+    AttachmentBudget createBudget() {
+        if (maxFileSize <= 0 && maxTestSize <= 0 && maxClassSize <= 0 && maxBuildSize <= 0) {
+            return null;
+        }
+        return new AttachmentBudget(toBytes(maxFileSize), toBytes(maxTestSize), toBytes(maxClassSize),
+                toBytes(maxBuildSize), truncateOversizedText);
+    }
+
+    private static long toBytes(long megabytes) {
+        return megabytes > 0 ? megabytes * 1024 * 1024 : 0;
+    }
+
     @DataBoundSetter
     public void setShowAttachmentsAtClassLevel(Boolean showAttachmentsAtClassLevel) {
         this.showAttachmentsAtClassLevel = showAttachmentsAtClassLevel;
@@ -54,6 +215,81 @@ public class AttachmentPublisher extends TestDataPublisher {
         this.showAttachmentsInStdOut = showAttachmentsInStdOut;
     }
 
+    @DataBoundSetter
+    public void setScanReportsOnAgent(boolean scanReportsOnAgent) {
+        this.scanReportsOnAgent = scanReportsOnAgent;
+    }
+
+    @DataBoundSetter
+    public void setCaptureThreads(int captureThreads) {
+        this.captureThreads = captureThreads;
+    }
+
+    @DataBoundSetter
+    public void setDeduplicateAttachments(boolean deduplicateAttachments) {
+        this.deduplicateAttachments = deduplicateAttachments;
+    }
+
+    @DataBoundSetter
+    public void setReuseUnchangedAttachments(boolean reuseUnchangedAttachments) {
+        this.reuseUnchangedAttachments = reuseUnchangedAttachments;
+    }
+
+    @DataBoundSetter
+    public void setLinkLocalAttachments(boolean linkLocalAttachments) {
+        this.linkLocalAttachments = linkLocalAttachments;
+    }
+
+    @DataBoundSetter
+    public void setCompressTextAttachments(boolean compressTextAttachments) {
+        this.compressTextAttachments = compressTextAttachments;
+    }
+
+    @DataBoundSetter
+    public void setStoreTextAttachmentsCompressed(boolean storeTextAttachmentsCompressed) {
+        this.storeTextAttachmentsCompressed = storeTextAttachmentsCompressed;
+    }
+
+    @DataBoundSetter
+    public void setCaptureAsynchronously(boolean captureAsynchronously) {
+        this.captureAsynchronously = captureAsynchronously;
+    }
+
+    @DataBoundSetter
+    public void setCapturePolicy(CapturePolicy capturePolicy) {
+        this.capturePolicy = capturePolicy;
+    }
+
+    @DataBoundSetter
+    public void setPreviousFailureBuilds(int previousFailureBuilds) {
+        this.previousFailureBuilds = previousFailureBuilds;
+    }
+
+    @DataBoundSetter
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    @DataBoundSetter
+    public void setMaxTestSize(long maxTestSize) {
+        this.maxTestSize = maxTestSize;
+    }
+
+    @DataBoundSetter
+    public void setMaxClassSize(long maxClassSize) {
+        this.maxClassSize = maxClassSize;
+    }
+
+    @DataBoundSetter
+    public void setMaxBuildSize(long maxBuildSize) {
+        this.maxBuildSize = maxBuildSize;
+    }
+
+    @DataBoundSetter
+    public void setTruncateOversizedText(boolean truncateOversizedText) {
+        this.truncateOversizedText = truncateOversizedText;
+    }
+
     public static FilePath getAttachmentPath(Run<?, ?> build) {
         return new FilePath(new File(build.getRootDir().getAbsolutePath()))
                 .child("junit-attachments");
@@ -75,24 +311,58 @@ public class AttachmentPublisher extends TestDataPublisher {
     public Data contributeTestData(Run<?, ?> build, FilePath workspace, Launcher launcher,
                                    TaskListener listener, TestResult testResult) throws IOException,
             InterruptedException {
-        final GetTestDataMethodObject methodObject = new GetTestDataMethodObject(build, workspace, launcher, listener, testResult);
+        final GetTestDataMethodObject methodObject = new GetTestDataMethodObject(build, workspace, launcher, listener, testResult, this);
         Map<String, Map<String, List<String>>> attachments = methodObject.getAttachments();
 
         if (attachments.isEmpty()) {
             return null;
         }
 
-        return new Data(attachments, isShowAttachmentsAtClassLevel(), isShowAttachmentsInStdOut(), methodObject.getEnclosingBlocks());
+        Data data = new Data(attachments, isShowAttachmentsAtClassLevel(), isShowAttachmentsInStdOut(), methodObject.getEnclosingBlocks());
+        data.statistics = methodObject.getStatistics();
+        if (AttachmentIndexFiles.ENABLED) {
+            data.storeIndex(build);
+        }
+        return data;
     }
 
     public static class Data extends TestResultAction.Data {
 
         @Deprecated
         private transient Map<String, List<String>> attachments;
+        /**
+         * The form {@link #index} is serialized in by older versions, only set while such data is being read,
+         * or while data is written whose index could not be stored in {@link #indexFile}.
+         */
         private Map<String, Map<String, List<String>>> attachmentsMap;
+        /**
+         * Name of the file with the attachments, see {@link AttachmentIndexFiles}.
+         * {@code null} for data written by older versions, until it is migrated.
+         */
+        private String indexFile;
+        /** The attachments, until they are stored in {@link #indexFile}. */
+        private transient AttachmentIndex index;
+        /** Whether storing {@link #index} failed, so it is not retried for every save. */
+        private transient boolean indexNotStored;
+        /** The build of data written by an older version, once known, so {@link #writeReplace} can migrate it. */
+        private transient Run<?, ?> run;
         private Boolean showAttachmentsAtClassLevel;
         private Boolean showAttachmentsInStdOut;
         private List<String> enclosingBlocks;
+        /**
+         * Test classes whose attachments are all stored in the class directory, as historical builds did,
+         * rather than in a directory per test. {@code null} until determined for data written by older versions.
+         */
+        private Set<String> classLevelStorage;
+        /** How capturing the attachments went, {@code null} for data written by older versions. */
+        private CaptureStatistics statistics;
+        /**
+         * Test class name → whether its attachments are stored at class level, as far as probed for data written
+         * by older versions, until {@link #classLevelStorage} is known.
+         */
+        private transient volatile Map<String, Boolean> probedClassLevelStorage;
+        /** Test class name → whether any of its tests ran within {@link #enclosingBlocks}. */
+        private transient volatile Map<String, Boolean> blockMatches;
 
         /**
          * @param attachmentsMap { fully-qualified test class name → { test method name → [ attachment file name ] } }
@@ -104,10 +374,31 @@ public class AttachmentPublisher extends TestDataPublisher {
                 Boolean showAttachmentsAtClassLevel,
                 Boolean showAttachmentsInStdOut,
                 List<String> enclosingBlocks) {
-            this.attachmentsMap = attachmentsMap;
+            this.index = AttachmentIndex.of(attachmentsMap);
             this.showAttachmentsAtClassLevel = showAttachmentsAtClassLevel;
             this.showAttachmentsInStdOut = showAttachmentsInStdOut;
             this.enclosingBlocks = enclosingBlocks == null ? null : new ArrayList<>(enclosingBlocks);
+            // attachments are always stored per test nowadays
+            this.classLevelStorage = new HashSet<>();
+        }
+
+        /** Copies the given data, for serialization. */
+        private Data(Data data) {
+            this.showAttachmentsAtClassLevel = data.showAttachmentsAtClassLevel;
+            this.showAttachmentsInStdOut = data.showAttachmentsInStdOut;
+            this.enclosingBlocks = data.enclosingBlocks;
+            this.classLevelStorage = data.classLevelStorage;
+            this.statistics = data.statistics;
+        }
+
+        /**
+         * Returns how long capturing the attachments took, phase by phase.
+         *
+         * @return {@code null} for builds recorded by older versions
+         */
+        @CheckForNull
+        public CaptureStatistics getStatistics() {
+            return statistics;
         }
 
         @Override
@@ -125,34 +416,11 @@ public class AttachmentPublisher extends TestDataPublisher {
                     return Collections.emptyList();
                 }
 
-                // If enclosingBlocks is non-empty, check that at least one child CaseResult matches
-                if (enclosingBlocks != null && !enclosingBlocks.isEmpty()) {
-                    ClassResult classResult = (ClassResult) testObject;
-                    boolean found = false;
-                    for (CaseResult child : classResult.getChildren()) {
-                        if (enclosingBlocks.equals(child.getSuiteResult().getEnclosingBlocks())) {
-                            found = true;
-                            break;
-                        }
-                    }
-                    if (!found) {
-                        return Collections.emptyList();
-                    }
-                }
-
                 packageName = testObject.getParent().getName();
                 className = testObject.getName();
                 testName = null;
-            } else if (testObject instanceof CaseResult caseResult) {
+            } else if (testObject instanceof CaseResult) {
                 // We're looking at the page for an individual test (i.e. a single @Test method)
-
-                // If enclosingBlocks is non-empty, filter by matching enclosing flow node IDs
-                if (enclosingBlocks != null && !enclosingBlocks.isEmpty()) {
-                    if (!enclosingBlocks.equals(caseResult.getSuiteResult().getEnclosingBlocks())) {
-                        return Collections.emptyList();
-                    }
-                }
-
                 packageName = testObject.getParent().getParent().getName();
                 className = testObject.getParent().getName();
                 testName = testObject.getName();
@@ -164,10 +432,32 @@ public class AttachmentPublisher extends TestDataPublisher {
             // Determine the fully-qualified test class (i.e. com.example.foo.MyTestCase)
             String fullName = getFullyQualifiedTestClassName(packageName, className);
 
-            // Get the mapping of individual test -> attachment names
-            Map<String, List<String>> tests = attachmentsMap.get(fullName);
-            if (tests == null) {
-                return Collections.emptyList();
+            // Get the mapping of individual test -> attachment names.
+            // Most classes have no attachments, so look that up before anything more expensive.
+            AttachmentIndex index = getIndex(testObject.getRun());
+            TreeMap<String, List<String>> tests = null;
+            List<String> attachmentPaths = null;
+            if (testName == null) {
+                tests = index.getTests(fullName);
+                if (tests == null) {
+                    return Collections.emptyList();
+                }
+            } else {
+                attachmentPaths = index.getAttachments(fullName, testName);
+                if (attachmentPaths == null || attachmentPaths.isEmpty()) {
+                    return Collections.emptyList();
+                }
+            }
+
+            // If enclosingBlocks is non-empty, filter by matching enclosing flow node IDs
+            if (enclosingBlocks != null && !enclosingBlocks.isEmpty()) {
+                if (testObject instanceof CaseResult caseResult) {
+                    if (!enclosingBlocks.equals(caseResult.getSuiteResult().getEnclosingBlocks())) {
+                        return Collections.emptyList();
+                    }
+                } else if (!matchesEnclosingBlocks(fullName, (ClassResult) testObject)) {
+                    return Collections.emptyList();
+                }
             }
 
             FilePath root = getAttachmentPath(testObject.getRun());
@@ -175,27 +465,20 @@ public class AttachmentPublisher extends TestDataPublisher {
                 root = root.child(String.join("-", enclosingBlocks));
             }
             // Historical builds might have attachments stored in class level directories
-            boolean attachmentsStoredAtClassLevel = enclosingBlocks == null && areAttachmentsStoredAtClassLevel(root, fullName, tests);
+            boolean attachmentsStoredAtClassLevel = isStoredAtClassLevel(root, index, fullName);
 
             // Return a single TestAction which will display the attached files
             AttachmentTestAction action;
             if (testObject instanceof ClassResult cr) {
-                // Ensure attachments are shown in the same order as the tests
-                TreeMap<String, List<String>> sortedTests = new TreeMap<String, List<String>>(tests);
-
+                // The index keeps the tests sorted, so attachments are shown in the same order as the tests
                 action = new TestClassAttachmentTestAction(
                         cr,
                         getAttachmentPath(root, fullName, null),
-                        sortedTests,
+                        tests,
                         attachmentsStoredAtClassLevel,
                         enclosingBlocks);
             }
             else {
-                List<String> attachmentPaths = tests.get(testName);
-                if (attachmentPaths == null || attachmentPaths.isEmpty()) {
-                    return Collections.emptyList();
-                }
-
                 FilePath attachmentsDirectory = attachmentsStoredAtClassLevel ?
                         getAttachmentPath(root, fullName, null) :
                         getAttachmentPath(root, fullName, testName);
@@ -207,6 +490,58 @@ public class AttachmentPublisher extends TestDataPublisher {
             return Collections.<TestAction> singletonList(action);
         }
 
+        /**
+         * Returns the attachments, reading them from {@link #indexFile} if needed.
+         * Attachments in the build record are kept in memory, see {@link #writeReplace}.
+         */
+        private AttachmentIndex getIndex(Run<?, ?> run) {
+            String file;
+            synchronized (this) {
+                if (indexFile == null) {
+                    this.run = run;
+                    return index;
+                }
+                file = indexFile;
+            }
+            return AttachmentIndexFiles.read(run, file);
+        }
+
+        /**
+         * Moves the attachments out of the build record into a file of their own.
+         *
+         * @return whether that succeeded, otherwise they stay in the build record
+         */
+        private synchronized boolean storeIndex(Run<?, ?> run) {
+            try {
+                indexFile = AttachmentIndexFiles.write(run, index);
+                index = null;
+                return true;
+            } catch (IOException e) {
+                indexNotStored = true;
+                LOGGER.log(Level.WARNING, "Failed to write the attachment index of " + run + ", keeping it in the build record", e);
+                return false;
+            }
+        }
+
+        /**
+         * Whether at least one test of the given class ran within our enclosing blocks.
+         * The answer is remembered per class: the tests from our blocks are all recorded along with this data.
+         */
+        private boolean matchesEnclosingBlocks(String fullName, ClassResult classResult) {
+            Map<String, Boolean> matches = blockMatches;
+            if (matches == null) {
+                blockMatches = matches = new ConcurrentHashMap<>();
+            }
+            return matches.computeIfAbsent(fullName, name -> {
+                for (CaseResult child : classResult.getChildren()) {
+                    if (enclosingBlocks.equals(child.getSuiteResult().getEnclosingBlocks())) {
+                        return true;
+                    }
+                }
+                return false;
+            });
+        }
+
         /** Handles migration from the old serialisation format. */
         private Object readResolve() {
             if (this.showAttachmentsAtClassLevel == null) {
@@ -234,9 +569,29 @@ public class AttachmentPublisher extends TestDataPublisher {
                 attachments = null;
             }
 
+            if (indexFile == null) {
+                index = AttachmentIndex.of(attachmentsMap);
+            }
+            attachmentsMap = null;
             return this;
         }
 
+        /**
+         * Writes the attachments into the build record only as long as they are not in a file of their own.
+         * If {@link AttachmentIndexFiles#ENABLED}, they are moved into one now, when the build is saved anyway.
+         */
+        private synchronized Object writeReplace() {
+            if (indexFile == null && run != null && !indexNotStored && AttachmentIndexFiles.ENABLED) {
+                storeIndex(run);
+            }
+            Data data = new Data(this);
+            data.indexFile = indexFile;
+            if (indexFile == null) {
+                data.attachmentsMap = index.toMap();
+            }
+            return data;
+        }
+
         private static String getFullyQualifiedTestClassName(String packageName, String className) {
             String fullName = "";
             if (!packageName.equals("(root)")) {
@@ -248,7 +603,45 @@ public class AttachmentPublisher extends TestDataPublisher {
             return fullName;
         }
 
-        private boolean areAttachmentsStoredAtClassLevel(
+        /**
+         * Whether the attachments of the given class are all stored in the class directory.
+         * For data written by older versions, that is determined once per class, for the class that is looked at,
+         * and recorded the next time the build is saved once all classes have been looked at.
+         */
+        private boolean isStoredAtClassLevel(FilePath root, AttachmentIndex index, String fullName) {
+            synchronized (this) {
+                if (classLevelStorage == null && enclosingBlocks != null) {
+                    // Only builds from before enclosing blocks were recorded may use the class level layout
+                    classLevelStorage = new HashSet<>();
+                }
+                if (classLevelStorage != null) {
+                    return classLevelStorage.contains(fullName);
+                }
+            }
+            Map<String, Boolean> probed = probedClassLevelStorage;
+            if (probed == null) {
+                probedClassLevelStorage = probed = new ConcurrentHashMap<>();
+            }
+            // look at the files without holding the lock of this data, nor for any other class
+            boolean atClassLevel = probed.computeIfAbsent(fullName,
+                    name -> areAttachmentsStoredAtClassLevel(root, name, index.getTests(name)));
+            if (probed.size() == index.getClassCount()) {
+                Set<String> classes = new HashSet<>();
+                for (Map.Entry<String, Boolean> e : probed.entrySet()) {
+                    if (e.getValue()) {
+                        classes.add(e.getKey());
+                    }
+                }
+                synchronized (this) {
+                    if (classLevelStorage == null) {
+                        classLevelStorage = classes;
+                    }
+                }
+            }
+            return atClassLevel;
+        }
+
+        private static boolean areAttachmentsStoredAtClassLevel(
                 FilePath root, String fullName, Map<String, List<String>> classAttachments) {
 
             for (Map.Entry<String,List<String>> entry : classAttachments.entrySet()) {
@@ -260,7 +653,8 @@ public class AttachmentPublisher extends TestDataPublisher {
                             return false;
                         }
                     } catch (IOException | InterruptedException e) {
-                        throw new RuntimeException(e);
+                        LOGGER.log(Level.WARNING, "Failed to check for " + testCaseAttachmentPath + ", assuming attachments are stored per test", e);
+                        return false;
                     }
                 }
             }
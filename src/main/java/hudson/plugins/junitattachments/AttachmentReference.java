@@ -0,0 +1,33 @@
+package hudson.plugins.junitattachments;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+
+import java.io.Serializable;
+
+/**
+ * A file referenced from the output of a test via an {@code [[ATTACHMENT|...]]} marker.
+ */
+final class AttachmentReference implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** Fully-qualified name of the test class (or test suite) whose output contained the marker. */
+    final String className;
+
+    /** Name of the test method, or {@code null} if the marker was found in the output of the whole suite. */
+    @CheckForNull
+    final String testName;
+
+    /** The referenced path, as written in the marker. */
+    final String path;
+
+    AttachmentReference(String className, @CheckForNull String testName, String path) {
+        this.className = className;
+        this.testName = testName;
+        this.path = path;
+    }
+
+    @Override
+    public String toString() {
+        return className + (testName == null ? "" : "#" + testName) + " -> " + path;
+    }
+}
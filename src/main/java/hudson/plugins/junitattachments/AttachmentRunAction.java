@@ -0,0 +1,140 @@
+package hudson.plugins.junitattachments;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.Run;
+import hudson.tasks.junit.TestResultAction;
+import jenkins.model.TransientActionFactory;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The test attachments of a build as a whole: whether they are complete, how long capturing them took,
+ * also through the remote API at {@code junit-attachments/api}, and a ZIP archive of all of them
+ * at {@code junit-attachments/-/downloadAll}.
+ */
+@ExportedBean
+public class AttachmentRunAction implements Action {
+
+    private final Run<?, ?> run;
+
+    public AttachmentRunAction(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "symbol-cube";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Test attachments";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "junit-attachments";
+    }
+
+    /**
+     * Whether the attachments of the build are still being copied, see {@link AttachmentPublisher#isCaptureAsynchronously()}.
+     *
+     * @return {@code capturing}, {@code incomplete} if copying some of them failed, or {@code complete}
+     */
+    @Exported
+    public String getStatus() {
+        if (AttachmentCaptures.isCapturing(run)) {
+            return "capturing";
+        }
+        return AttachmentCaptures.isIncomplete(run) ? "incomplete" : "complete";
+    }
+
+    /**
+     * How long capturing the attachments took, for each {@code junit} step of the build that captured any.
+     */
+    @Exported(inline = true)
+    public List<CaptureStatistics> getStatistics() {
+        List<CaptureStatistics> statistics = new ArrayList<CaptureStatistics>();
+        TestResultAction action = run.getAction(TestResultAction.class);
+        if (action != null) {
+            for (TestResultAction.Data data : action.getData()) {
+                if (data instanceof AttachmentPublisher.Data) {
+                    CaptureStatistics s = ((AttachmentPublisher.Data) data).getStatistics();
+                    if (s != null) {
+                        statistics.add(s);
+                    }
+                }
+            }
+        }
+        return statistics;
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    /**
+     * Routes {@code -/} to the {@link Endpoints}, as {@link AttachmentTestAction} does.
+     */
+    public Object getDynamic(String token, StaplerRequest2 req, StaplerResponse2 rsp) {
+        return AttachmentTestAction.ENDPOINTS.equals(token) ? new Endpoints() : null;
+    }
+
+    /**
+     * What is served below {@code -/}.
+     */
+    public class Endpoints {
+
+        /**
+         * Downloads all attachments of the build as a ZIP archive.
+         */
+        public HttpResponse doDownloadAll() {
+            return new AttachmentArchiveResponse(AttachmentPublisher.getAttachmentPath(run), null,
+                    run.getParent().getFullName().replace('/', '-') + '-' + run.getNumber() + "-attachments.zip");
+        }
+    }
+
+    @Extension
+    public static final class Factory extends TransientActionFactory<Run> {
+
+        @Override
+        public Class<Run> type() {
+            return Run.class;
+        }
+
+        @Override
+        public Class<? extends Action> actionType() {
+            return AttachmentRunAction.class;
+        }
+
+        @Override
+        public Collection<? extends Action> createFor(Run target) {
+            Run<?, ?> run = target;
+            TestResultAction action = run.getAction(TestResultAction.class);
+            if (action == null || !new File(AttachmentPublisher.getAttachmentPath(run).getRemote()).isDirectory()) {
+                return Collections.emptyList();
+            }
+            for (TestResultAction.Data data : action.getData()) {
+                if (data instanceof AttachmentPublisher.Data) {
+                    return Collections.singleton(new AttachmentRunAction(run));
+                }
+            }
+            return Collections.emptyList();
+        }
+    }
+}
@@ -2,11 +2,26 @@ package hudson.plugins.junitattachments;
 
 import hudson.FilePath;
 import hudson.model.DirectoryBrowserSupport;
+import hudson.model.Run;
 import hudson.tasks.junit.TestAction;
 import hudson.tasks.test.TestObject;
+import jenkins.security.ResourceDomainConfiguration;
+import jenkins.security.ResourceDomainRootAction;
+import jenkins.security.stapler.StaplerNotDispatchable;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
 
 public abstract class AttachmentTestAction extends TestAction {
 
+	/** The path segment below which {@link Endpoints} are served. */
+	static final String ENDPOINTS = "-";
+
 	final FilePath storage;
 	final TestObject testObject;
 
@@ -27,10 +42,81 @@ public abstract class AttachmentTestAction extends TestAction {
 		return "attachments";
 	}
 
+	public HttpResponse doDynamic(StaplerRequest2 req) {
+		DirectoryBrowserSupport dbs = createDirectoryBrowserSupport();
+		AttachmentFileResponse file = AttachmentFileResponse.forAttachment(storage, req.getRestOfPath(), isImmutable());
+		if (file == null) {
+			// directory listings and anything not found
+			return dbs;
+		}
+		return serve(file, dbs, req);
+	}
+
+	/**
+	 * @deprecated attachments are served by {@link #doDynamic(StaplerRequest2)}
+	 */
+	@Deprecated
+	@StaplerNotDispatchable
 	public DirectoryBrowserSupport doDynamic() {
+		return createDirectoryBrowserSupport();
+	}
+
+	/**
+	 * Whether the attachment files of the build are still being copied, so some may not be available yet.
+	 */
+	public boolean isCapturing() {
+		Run<?, ?> run = testObject.getRun();
+		return run != null && AttachmentCaptures.isCapturing(run);
+	}
+
+	/**
+	 * Whether copying the attachment files of the build failed, so some are missing.
+	 */
+	public boolean isIncomplete() {
+		Run<?, ?> run = testObject.getRun();
+		return run != null && !AttachmentCaptures.isCapturing(run) && AttachmentCaptures.isIncomplete(run);
+	}
+
+	private DirectoryBrowserSupport createDirectoryBrowserSupport() {
 		return new DirectoryBrowserSupport(this, storage, "Attachments", "symbol-cube", true);
 	}
 
+	/** Whether the attachments will not change anymore, as the build completed and all files arrived. */
+	private boolean isImmutable() {
+		Run<?, ?> run = testObject.getRun();
+		return run != null && !run.isBuilding() && !AttachmentCaptures.isCapturing(run);
+	}
+
+	private static HttpResponse serve(AttachmentFileResponse file, DirectoryBrowserSupport dbs, StaplerRequest2 req) {
+		if (ResourceDomainConfiguration.isResourceDomainConfigured() && !ResourceDomainConfiguration.isResourceRequest(req)) {
+			// serve it from the resource domain, just like DirectoryBrowserSupport does
+			ResourceDomainRootAction.Token token = ResourceDomainRootAction.get().getToken(dbs, req);
+			if (token != null) {
+				return HttpResponses.redirectTo(302, ResourceDomainRootAction.get().getRedirectUrl(token, req.getRestOfPath()));
+			}
+		}
+		return file;
+	}
+
+	/**
+	 * Routes {@code -/} to the {@link Endpoints}, where they cannot shadow an attachment or test of the same name.
+	 */
+	public Object getDynamic(String token, StaplerRequest2 req, StaplerResponse2 rsp) {
+		return ENDPOINTS.equals(token) ? createEndpoints() : null;
+	}
+
+	protected Endpoints createEndpoints() {
+		return new Endpoints();
+	}
+
+	/**
+	 * Returns the attachments {@link Endpoints#doDownloadAll()} archives, relative to the storage,
+	 * or {@code null} to archive all of the storage.
+	 */
+	protected Collection<String> getArchivedAttachments() {
+		return null;
+	}
+
 	public TestObject getTestObject() {
 		return testObject;
 	}
@@ -38,4 +124,37 @@ public abstract class AttachmentTestAction extends TestAction {
 	public static boolean isImageFile(String filename) {
 		return filename.matches("(?i).+\\.(gif|jpe?g|png)$");
 	}
+
+	/**
+	 * What is served below {@code -/} of the attachments, rather than the attachments themselves.
+	 */
+	public class Endpoints {
+
+		/**
+		 * Downloads the attachments as a ZIP archive.
+		 */
+		public HttpResponse doDownloadAll() {
+			return new AttachmentArchiveResponse(storage, getArchivedAttachments(),
+					TestObject.safe(testObject.getFullName()) + "-attachments.zip");
+		}
+
+		/**
+		 * Serves a thumbnail of the image attachment at the rest of the path, or the image itself
+		 * if no thumbnail can be created.
+		 */
+		public HttpResponse doThumbnail(StaplerRequest2 req) throws IOException, InterruptedException {
+			String path = req.getRestOfPath();
+			AttachmentFileResponse image = AttachmentFileResponse.forAttachment(storage, path, isImmutable());
+			Run<?, ?> run = testObject.getRun();
+			if (image == null || run == null || !isImageFile(path)) {
+				return HttpResponses.notFound();
+			}
+			File thumbnail = image.isCompressed() ? null : AttachmentThumbnails.get(run, image.getFile());
+			if (thumbnail == null) {
+				return serve(image, createDirectoryBrowserSupport(), req);
+			}
+			// generated by us rather than uploaded by a test, so no need for the resource domain
+			return AttachmentFileResponse.forFile(thumbnail, thumbnail.getName(), isImmutable());
+		}
+	}
 }
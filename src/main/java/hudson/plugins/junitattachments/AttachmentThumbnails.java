@@ -0,0 +1,187 @@
+package hudson.plugins.junitattachments;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.model.Run;
+import jenkins.util.SystemProperties;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Creates thumbnails of image attachments on first request, and caches them in a directory of the build.
+ * <p>
+ * The cache of each build is bounded in size, evicting the least recently used thumbnails first.
+ * Images are decoded subsampled and only a few at a time, so a page with hundreds of screenshots
+ * cannot exhaust the memory of the controller.
+ */
+final class AttachmentThumbnails {
+
+    private static final Logger LOGGER = Logger.getLogger(AttachmentThumbnails.class.getName());
+
+    /** Maximum width and height of a thumbnail, in pixels. */
+    static final int SIZE = SystemProperties.getInteger(AttachmentThumbnails.class.getName() + ".size", 200);
+
+    /** Maximum total size of the thumbnails cached for a build, in bytes. */
+    private static final long MAX_CACHE_SIZE =
+            SystemProperties.getLong(AttachmentThumbnails.class.getName() + ".maxCacheSize", 32L * 1024 * 1024);
+
+    /** Images that are still larger than this after subsampling are not worth the memory. */
+    private static final long MAX_DECODED_PIXELS = 16L * 1024 * 1024;
+
+    private static final Semaphore DECODERS = new Semaphore(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    private static final String CACHE_DIRECTORY = "junit-attachments-thumbnails";
+
+    private AttachmentThumbnails() {
+    }
+
+    /**
+     * Returns the thumbnail of the given image attachment of the given build, creating it if needed.
+     *
+     * @return the thumbnail, or {@code null} if the image cannot be read
+     */
+    @CheckForNull
+    static File get(Run<?, ?> run, File image) throws IOException, InterruptedException {
+        Path cache = new File(run.getRootDir(), CACHE_DIRECTORY).toPath();
+        String key = ContentStore.digest(new ByteArrayInputStream(image.getPath().getBytes(StandardCharsets.UTF_8)));
+        Path thumbnail = cache.resolve(key + ".png");
+        if (isFresh(thumbnail, image)) {
+            return touch(thumbnail);
+        }
+
+        DECODERS.acquire();
+        try {
+            // someone else may have created it in the meantime
+            if (isFresh(thumbnail, image)) {
+                return touch(thumbnail);
+            }
+            BufferedImage scaled = scale(image);
+            if (scaled == null) {
+                return null;
+            }
+            Files.createDirectories(cache);
+            Path tmp = Files.createTempFile(cache, "thumbnail", ".tmp");
+            try {
+                ImageIO.write(scaled, "png", tmp.toFile());
+                Files.move(tmp, thumbnail, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } finally {
+            DECODERS.release();
+        }
+        evict(cache, thumbnail);
+        return thumbnail.toFile();
+    }
+
+    private static boolean isFresh(Path thumbnail, File image) {
+        File f = thumbnail.toFile();
+        return f.isFile() && f.lastModified() >= image.lastModified();
+    }
+
+    /** Keeps track of when a thumbnail was last used, for {@link #evict}. */
+    private static File touch(Path thumbnail) {
+        File f = thumbnail.toFile();
+        if (!f.setLastModified(System.currentTimeMillis())) {
+            LOGGER.fine(() -> "Failed to touch " + f);
+        }
+        return f;
+    }
+
+    @CheckForNull
+    private static BufferedImage scale(File image) throws IOException {
+        BufferedImage source;
+        try (ImageInputStream in = ImageIO.createImageInputStream(image)) {
+            if (in == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                // only decode every n-th pixel of large images, there is no need for more
+                int step = Math.max(1, Math.max(width, height) / (SIZE * 2));
+                if ((long) (width / step) * (height / step) > MAX_DECODED_PIXELS) {
+                    return null;
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                source = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Failed to read image " + image, e);
+            return null;
+        }
+
+        double factor = Math.min(1.0, (double) SIZE / Math.max(source.getWidth(), source.getHeight()));
+        int width = Math.max(1, (int) Math.round(source.getWidth() * factor));
+        int height = Math.max(1, (int) Math.round(source.getHeight() * factor));
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    /**
+     * Deletes the least recently used thumbnails until the cache fits into {@link #MAX_CACHE_SIZE} again.
+     */
+    private static void evict(Path cache, Path keep) {
+        File[] files = cache.toFile().listFiles((dir, name) -> name.endsWith(".png"));
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= MAX_CACHE_SIZE) {
+            return;
+        }
+        List<File> oldestFirst = new ArrayList<File>(Arrays.asList(files));
+        oldestFirst.sort(Comparator.comparingLong(File::lastModified));
+        for (File f : oldestFirst) {
+            if (total <= MAX_CACHE_SIZE) {
+                break;
+            }
+            if (f.toPath().equals(keep)) {
+                continue;
+            }
+            long length = f.length();
+            if (f.delete()) {
+                total -= length;
+            }
+        }
+    }
+}
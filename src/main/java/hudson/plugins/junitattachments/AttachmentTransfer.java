@@ -0,0 +1,1135 @@
+package hudson.plugins.junitattachments;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.FilePath;
+import hudson.remoting.Pipe;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.WorkspaceList;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import hudson.util.io.Archiver;
+import hudson.util.io.ArchiverFactory;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects every file that has to be copied from the workspace into the attachment storage
+ * of a build, and then copies all of them in a single call.
+ * <p>
+ * When the workspace lives on an agent, the files are sent back to the controller as one tar stream,
+ * so the number of remoting round trips no longer depends on the number of attachments.
+ */
+final class AttachmentTransfer {
+
+    /** Root of the attachment storage on the controller, i.e. where the tar stream is extracted. */
+    private final FilePath storage;
+
+    /** Pending entries, keyed by their path relative to {@link #storage}. */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /** Number of files that were copied for each entry, once {@link #transfer} has run. */
+    private Map<String, Integer> counts = Collections.emptyMap();
+
+    /** Files of each entry relative to its destination, with {@code /} as separator, once {@link #list} has run. */
+    private Map<String, List<String>> listing = Collections.emptyMap();
+
+    /** If set, files are stored once in here and linked into {@link #storage}, see {@link #setContentStore}. */
+    @CheckForNull
+    private ContentStore contentStore;
+
+    /** If set, the attachment storage of the previous build, see {@link #setPreviousStorage}. */
+    @CheckForNull
+    private Path previousStorage;
+
+    /** Content of the {@link ChecksumManifest} of {@link #previousStorage}. */
+    private Map<String, String> previousDigests = Collections.emptyMap();
+
+    /** Whether files of a workspace on the controller are hard-linked, see {@link #setLinkLocalFiles}. */
+    private boolean linkLocalFiles;
+
+    /** Whether text files are compressed on the wire, see {@link #setCompressText}. */
+    private boolean compressText;
+
+    /** If set, the size limits applied before anything is copied, see {@link #setBudget}. */
+    @CheckForNull
+    private AttachmentBudget budget;
+
+    /** Whether {@link #budget} has been applied to the entries already. */
+    private boolean budgetApplied;
+
+    /** Temporary directory next to the workspace holding the truncated copies of oversized text files. */
+    @CheckForNull
+    private FilePath truncatedCopies;
+
+    /** Entries of truncated copies of files within a directory entry, mapped to the path of that directory entry. */
+    private final Map<String, String> truncatedOwners = new HashMap<String, String>();
+
+    /** Entries of single files that were skipped by the {@link #budget}. */
+    private final Set<String> skipped = new HashSet<String>();
+
+    private final AtomicLong uncompressedTextBytes = new AtomicLong();
+    private final AtomicLong compressedTextBytes = new AtomicLong();
+    private final AtomicLong transferredBytes = new AtomicLong();
+    private final AtomicInteger roundTrips = new AtomicInteger();
+
+    /** Digests of the files copied so far, keyed by their path relative to {@link #storage}. */
+    private final Map<String, String> digests = new ConcurrentHashMap<String, String>();
+
+    AttachmentTransfer(FilePath storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Schedules a single file to be copied.
+     *
+     * @param src file in the workspace; missing files are silently skipped
+     * @param dst destination below the attachment storage
+     */
+    void addFile(FilePath src, FilePath dst) {
+        entries.putIfAbsent(relativize(dst), new Entry(src.getRemote(), relativize(dst), false));
+    }
+
+    /**
+     * Schedules the contents of a directory to be copied recursively.
+     *
+     * @param src directory in the workspace; a missing directory is silently skipped
+     * @param dst destination directory below the attachment storage
+     */
+    void addDirectory(FilePath src, FilePath dst) {
+        entries.putIfAbsent(relativize(dst), new Entry(src.getRemote(), relativize(dst), true));
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Deduplicates the copied files through the given store: the files are hashed in the workspace first,
+     * and only content the store does not hold yet is sent.
+     */
+    void setContentStore(@CheckForNull ContentStore contentStore) {
+        this.contentStore = contentStore;
+    }
+
+    /**
+     * Hard-links files into the attachment storage, rather than copying them, when the workspace is on the controller
+     * and on the same file system as the attachment storage. Files that cannot be linked are still copied.
+     * <p>
+     * The captured attachments then share their content with the workspace files, so this must only be used
+     * when the workspace files are replaced rather than modified in place afterwards.
+     */
+    void setLinkLocalFiles(boolean linkLocalFiles) {
+        this.linkLocalFiles = linkLocalFiles;
+    }
+
+    /**
+     * Compresses text files, as told by {@link TextAttachments}, while they are sent from an agent,
+     * using a separate compressed tar stream next to the one for all other files.
+     */
+    void setCompressText(boolean compressText) {
+        this.compressText = compressText;
+    }
+
+    /**
+     * Limits the size of the files to be copied. The files are measured where they are first, and those that do not
+     * fit are skipped, or replaced by truncated copies made on the agent, as the budget decides.
+     */
+    void setBudget(@CheckForNull AttachmentBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Reuses files of the given attachment storage of a previous build: the files are hashed in the workspace
+     * first, and files with the same path and content as recorded in the {@link ChecksumManifest} of the previous
+     * build are linked from there instead of being sent again.
+     */
+    void setPreviousStorage(@CheckForNull FilePath previousStorage) {
+        this.previousStorage = previousStorage == null ? null : new File(previousStorage.getRemote()).toPath();
+    }
+
+    /**
+     * Copies all scheduled entries into the attachment storage.
+     *
+     * @param workspace the workspace the entries were resolved against, which determines the channel to use
+     * @param executor if not {@code null}, the entries are split into batches by test class directory,
+     *                 which are copied concurrently using this executor
+     * @param batches the maximum number of batches to split the entries into
+     * @return the total number of files copied
+     */
+    int transfer(final FilePath workspace, @CheckForNull ExecutorService executor, int batches)
+            throws IOException, InterruptedException {
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        try {
+            applyBudget(workspace);
+            if (previousStorage != null) {
+                previousDigests = ChecksumManifest.read(previousStorage);
+            }
+
+            if (entries.isEmpty()) {
+                // everything was skipped
+            } else if (executor == null || batches <= 1) {
+                result.putAll(transfer(workspace, new ArrayList<Entry>(entries.values())));
+            } else {
+                List<Future<Map<String, Integer>>> futures = new ArrayList<Future<Map<String, Integer>>>();
+                for (final List<Entry> batch : partition(batches)) {
+                    futures.add(executor.submit(new Callable<Map<String, Integer>>() {
+                        @Override
+                        public Map<String, Integer> call() throws IOException, InterruptedException {
+                            return transfer(workspace, batch);
+                        }
+                    }));
+                }
+                for (Future<Map<String, Integer>> future : futures) {
+                    result.putAll(getResult(future));
+                }
+            }
+        } finally {
+            if (truncatedCopies != null) {
+                countRoundTrip(truncatedCopies);
+                truncatedCopies.deleteRecursive();
+                truncatedCopies = null;
+            }
+        }
+        for (Map.Entry<String, String> copy : truncatedOwners.entrySet()) {
+            Integer count = result.remove(copy.getKey());
+            if (count != null) {
+                result.merge(copy.getValue(), count, Integer::sum);
+            }
+        }
+        counts = result;
+        if (!digests.isEmpty()) {
+            ChecksumManifest.update(new File(storage.getRemote()).toPath(), digests);
+        }
+
+        int total = 0;
+        for (Integer count : counts.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Lists the files that {@link #transfer} is going to copy, without copying anything yet,
+     * and counts them as if they had been copied, see {@link #getTransferredCount} and {@link #getListedFiles}.
+     *
+     * @param workspace the workspace the entries were resolved against, which determines the channel to use
+     * @return the total number of files listed
+     */
+    int list(FilePath workspace) throws IOException, InterruptedException {
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        applyBudget(workspace);
+        countRoundTrip(workspace);
+        Map<String, List<String>> files = workspace.act(new ListFiles(new ArrayList<Entry>(entries.values())));
+        checkListing(entries, files);
+        for (Map.Entry<String, String> copy : truncatedOwners.entrySet()) {
+            if (files.remove(copy.getKey()) != null) {
+                files.computeIfAbsent(copy.getValue(), k -> new ArrayList<String>())
+                        .add(Entry.relativize(copy.getValue(), copy.getKey()));
+            }
+        }
+        listing = files;
+        Map<String, Integer> listed = new HashMap<String, Integer>();
+        int total = 0;
+        for (Map.Entry<String, List<String>> e : listing.entrySet()) {
+            listed.put(e.getKey(), e.getValue().size());
+            total += e.getValue().size();
+        }
+        counts = listed;
+        return total;
+    }
+
+    /**
+     * Checks what {@link ListFiles} returned, as the listed files are registered as attachments right away,
+     * and their names are later resolved against the storage on the controller, see {@link #checkPath}.
+     *
+     * @param entries the entries that were listed, keyed by their path
+     * @param files the files of each entry, relative to the entry, as returned by the agent
+     * @throws IOException if a file does not belong to the entry it is listed for
+     */
+    static void checkListing(Map<String, Entry> entries, Map<String, List<String>> files) throws IOException {
+        for (Map.Entry<String, List<String>> e : files.entrySet()) {
+            String entry = e.getKey();
+            for (String file : e.getValue()) {
+                // a single file entry lists its file by an empty name
+                String path = file.isEmpty() || entry.isEmpty() ? entry + file : entry + "/" + file;
+                checkPath(entries.get(entry), path);
+            }
+        }
+    }
+
+    /**
+     * Returns the files of the entry with the given destination that {@link #list} found,
+     * relative to that destination.
+     */
+    List<String> getListedFiles(FilePath dst) {
+        List<String> files = listing.get(relativize(dst));
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<String>(files.size());
+        for (String file : files) {
+            result.add(file.replace('/', File.separatorChar));
+        }
+        return result;
+    }
+
+    /**
+     * Measures the files of all entries on the agent and lets the {@link #budget} decide on each of them.
+     * Files to be skipped are removed from the entries, and files to be truncated are replaced by truncated copies.
+     */
+    private void applyBudget(FilePath workspace) throws IOException, InterruptedException {
+        if (budget == null || budgetApplied) {
+            return;
+        }
+        budgetApplied = true;
+        countRoundTrip(workspace);
+        List<MeasuredFile> files = workspace.act(new MeasureFiles(new ArrayList<Entry>(entries.values())));
+
+        List<Truncation> truncations = new ArrayList<Truncation>();
+        for (MeasuredFile file : files) {
+            Entry entry = entries.get(file.entry);
+            checkPath(entry, file.path);
+            int slash = file.path.indexOf('/');
+            String className = slash < 0 ? file.path : file.path.substring(0, slash);
+            // files of a directory entry are attached to the test class, single files at className/testName/ to a test
+            String test = null;
+            int last = file.path.lastIndexOf('/');
+            if (!entry.directory && last > slash && file.path.indexOf('/', slash + 1) == last) {
+                test = file.path.substring(0, last);
+            }
+            long kept = budget.admit(file.path, className, test, file.size);
+            if (kept == file.size) {
+                continue;
+            }
+            if (entry.directory) {
+                entry.excluded.add(file.path);
+            } else {
+                entries.remove(entry.path);
+            }
+            if (kept < 0) {
+                if (!entry.directory) {
+                    skipped.add(entry.path);
+                }
+            } else {
+                truncations.add(new Truncation(file.entry, file.path, file.source, kept));
+            }
+        }
+        if (truncations.isEmpty()) {
+            return;
+        }
+
+        FilePath tmp = WorkspaceList.tempDir(workspace);
+        if (tmp == null) {
+            tmp = workspace;
+        }
+        countRoundTrip(tmp);
+        tmp.mkdirs();
+        countRoundTrip(tmp);
+        truncatedCopies = tmp.createTempDir("junit-attachments", "truncated");
+        countRoundTrip(tmp);
+        List<String> copies = truncatedCopies.act(new Truncate(truncations));
+        for (int i = 0; i < truncations.size(); i++) {
+            Truncation truncation = truncations.get(i);
+            entries.put(truncation.path, new Entry(copies.get(i), truncation.path, false));
+            if (!truncation.path.equals(truncation.entry)) {
+                truncatedOwners.put(truncation.path, truncation.entry);
+            }
+        }
+    }
+
+    private Map<String, Integer> transfer(FilePath workspace, List<Entry> pending)
+            throws IOException, InterruptedException {
+        if (contentStore != null || previousStorage != null) {
+            return transferByDigest(workspace, pending);
+        }
+        if (linkLocalFiles && !workspace.isRemote()) {
+            return copyLocally(pending, new File(storage.getRemote()), true);
+        }
+        return copy(workspace, pending, storage);
+    }
+
+    private Map<String, Integer> copy(FilePath workspace, List<Entry> pending, FilePath target)
+            throws IOException, InterruptedException {
+        if (workspace.isRemote()) {
+            return sendAsTar(workspace, pending, target);
+        }
+        return copyLocally(pending, new File(target.getRemote()));
+    }
+
+    /**
+     * Hashes the files where they are first, so that content already available on the controller,
+     * in the {@link #contentStore} or in the {@link #previousStorage}, is not sent again.
+     */
+    private Map<String, Integer> transferByDigest(FilePath workspace, List<Entry> pending)
+            throws IOException, InterruptedException {
+        countRoundTrip(workspace);
+        List<FileDigest> digests = workspace.act(new ComputeDigests(pending));
+        checkDigests(pending, digests);
+        Path target = new File(storage.getRemote()).toPath();
+
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        for (Entry entry : pending) {
+            result.put(entry.path, 0);
+        }
+
+        List<FileDigest> unresolved = new ArrayList<FileDigest>();
+        for (FileDigest digest : digests) {
+            if (reusePrevious(digest, resolve(target, digest.path))) {
+                recordCopy(digest, digest.digest, result);
+            } else {
+                unresolved.add(digest);
+            }
+        }
+        if (unresolved.isEmpty()) {
+            return result;
+        }
+
+        if (contentStore == null) {
+            copyFiles(workspace, unresolved, target, result);
+            return result;
+        }
+
+        // send each missing content once, named after its digest
+        Map<String, Entry> missing = new LinkedHashMap<String, Entry>();
+        for (FileDigest digest : unresolved) {
+            if (!missing.containsKey(digest.digest) && !contentStore.contains(digest.digest)) {
+                missing.put(digest.digest, new Entry(digest.source, digest.digest, false));
+            }
+        }
+
+        Map<String, String> stored = new HashMap<String, String>();
+        if (!missing.isEmpty()) {
+            Path incoming = contentStore.createIncomingDirectory();
+            try {
+                copy(workspace, new ArrayList<Entry>(missing.values()), new FilePath(incoming.toFile()));
+                for (String digest : missing.keySet()) {
+                    Path file = incoming.resolve(digest);
+                    if (Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+                        stored.put(digest, contentStore.add(digest, file));
+                    }
+                }
+            } finally {
+                new FilePath(incoming.toFile()).deleteRecursive();
+            }
+        }
+
+        List<FileDigest> pruned = new ArrayList<FileDigest>();
+        for (FileDigest digest : unresolved) {
+            if (missing.containsKey(digest.digest) && !stored.containsKey(digest.digest)) {
+                // vanished from the workspace before it could be sent
+                continue;
+            }
+            String actual = stored.containsKey(digest.digest) ? stored.get(digest.digest) : digest.digest;
+            try {
+                contentStore.link(actual, resolve(target, digest.path));
+                recordCopy(digest, actual, result);
+            } catch (NoSuchFileException e) {
+                // pruned from the store since we looked, so send the file after all
+                pruned.add(digest);
+            }
+        }
+        if (!pruned.isEmpty()) {
+            copyFiles(workspace, pruned, target, result);
+        }
+        return result;
+    }
+
+    /**
+     * Checks what {@link ComputeDigests} returned before any of it is resolved against the controller file system:
+     * a compromised agent must not be able to have the controller link, copy or delete files outside of the storage,
+     * or expose any file of the controller as content of the {@link #contentStore}.
+     *
+     * @throws IOException if a file does not belong to the entry it claims, or a digest is not one
+     */
+    static void checkDigests(List<Entry> pending, List<FileDigest> digests) throws IOException {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        for (Entry entry : pending) {
+            entries.put(entry.path, entry);
+        }
+        for (FileDigest digest : digests) {
+            checkPath(entries.get(digest.entry), digest.path);
+            if (!ContentStore.isDigest(digest.digest)) {
+                throw new IOException("The agent returned " + digest.digest + " as digest of " + digest.path
+                        + ", refusing to copy it");
+            }
+        }
+    }
+
+    /**
+     * Copies the given files into the storage of this build, rather than linking them.
+     */
+    private void copyFiles(FilePath workspace, List<FileDigest> digests, Path target, Map<String, Integer> result)
+            throws IOException, InterruptedException {
+        List<Entry> files = new ArrayList<Entry>();
+        for (FileDigest digest : digests) {
+            files.add(new Entry(digest.source, digest.path, false));
+            // never write through a link to a file of another build
+            Files.deleteIfExists(resolve(target, digest.path));
+        }
+        copy(workspace, files, storage);
+        for (FileDigest digest : digests) {
+            Path file = resolve(target, digest.path);
+            if (Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+                // what arrived may differ from what was hashed, if the file was still being written to
+                recordCopy(digest, ContentStore.digest(file), result);
+            }
+        }
+    }
+
+    /**
+     * Links the file from the previous build if it had the same content at the same path.
+     */
+    private boolean reusePrevious(FileDigest digest, Path dst) throws IOException {
+        if (previousStorage == null || !digest.digest.equals(previousDigests.get(digest.path))) {
+            return false;
+        }
+        // the path was checked when the agent returned it, but a directory on the way may still be a link
+        Path previous = resolve(previousStorage, digest.path);
+        if (!Files.isRegularFile(previous, LinkOption.NOFOLLOW_LINKS)
+                || !previous.toRealPath().startsWith(previousStorage.toRealPath())) {
+            return false;
+        }
+        ContentStore.linkOrCopy(previous, dst);
+        return true;
+    }
+
+    private void recordCopy(FileDigest digest, String actual, Map<String, Integer> result) {
+        digests.put(digest.path, actual);
+        result.put(digest.entry, result.get(digest.entry) + 1);
+    }
+
+    /**
+     * Splits the entries into at most the given number of batches, keeping the entries
+     * of a test class directory together in the same batch.
+     */
+    private List<List<Entry>> partition(int batches) {
+        Map<String, Integer> batchByDirectory = new HashMap<String, Integer>();
+        List<List<Entry>> result = new ArrayList<List<Entry>>();
+        for (Entry entry : entries.values()) {
+            int slash = entry.path.indexOf('/');
+            String directory = slash < 0 ? "" : entry.path.substring(0, slash);
+            Integer batch = batchByDirectory.get(directory);
+            if (batch == null) {
+                batch = batchByDirectory.size() % batches;
+                batchByDirectory.put(directory, batch);
+            }
+            if (batch == result.size()) {
+                result.add(new ArrayList<Entry>());
+            }
+            result.get(batch).add(entry);
+        }
+        return result;
+    }
+
+    /** Waits for a result computed by another thread, rethrowing what it failed with. */
+    static <T> T getResult(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Returns the number of files that were copied to the given destination,
+     * which must have been passed to {@link #addFile} or {@link #addDirectory} before.
+     */
+    int getTransferredCount(FilePath dst) {
+        Integer count = counts.get(relativize(dst));
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Whether the file scheduled by {@link #addFile} for the given destination was skipped
+     * because it did not fit into the {@linkplain #setBudget budget}.
+     */
+    boolean isSkipped(FilePath dst) {
+        return skipped.contains(relativize(dst));
+    }
+
+    private Map<String, Integer> sendAsTar(FilePath workspace, List<Entry> pending, FilePath target)
+            throws IOException, InterruptedException {
+        final Pipe pipe = Pipe.createRemoteToLocal();
+        final Pipe textPipe = compressText ? Pipe.createRemoteToLocal() : null;
+        countRoundTrip(workspace);
+        Future<Sent> future = workspace.actAsync(new SendAsTar(pending, pipe, textPipe));
+
+        // the agent writes the text stream first, so the streams have to be read in the same order
+        IOException readError = null;
+        try {
+            if (textPipe != null) {
+                target.untarFrom(textPipe.getIn(), FilePath.TarCompression.GZIP);
+            }
+            target.untarFrom(pipe.getIn(), FilePath.TarCompression.NONE);
+        } catch (IOException e) {
+            readError = e;
+            // let the agent fail rather than wait for the stream to be read
+            pipe.getIn().close();
+        }
+
+        try {
+            Sent sent = future.get();
+            if (readError != null) {
+                throw readError;
+            }
+            uncompressedTextBytes.addAndGet(sent.textBytes);
+            transferredBytes.addAndGet(sent.bytes);
+            compressedTextBytes.addAndGet(sent.compressedTextBytes);
+            return sent.counts;
+        } catch (ExecutionException e) {
+            IOException ioe = new IOException("Failed to transfer attachments from " + workspace, e.getCause());
+            if (readError != null) {
+                ioe.addSuppressed(readError);
+            }
+            throw ioe;
+        }
+    }
+
+    /**
+     * Returns the size of the text files that were sent compressed, see {@link #setCompressText}.
+     */
+    long getUncompressedTextBytes() {
+        return uncompressedTextBytes.get();
+    }
+
+    /**
+     * Returns how many bytes the text files took up on the wire after compression, see {@link #setCompressText}.
+     */
+    long getCompressedTextBytes() {
+        return compressedTextBytes.get();
+    }
+
+    /**
+     * Returns the size of the files that were copied or linked into the attachment storage from the workspace.
+     */
+    long getTransferredBytes() {
+        return transferredBytes.get();
+    }
+
+    /**
+     * Returns the number of calls to the agent made so far, which is {@code 0} for a workspace on the controller.
+     */
+    int getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    private void countRoundTrip(FilePath where) {
+        if (where.isRemote()) {
+            roundTrips.incrementAndGet();
+        }
+    }
+
+    private Map<String, Integer> copyLocally(List<Entry> pending, File target) throws IOException {
+        return copyLocally(pending, target, false);
+    }
+
+    /**
+     * Copies the entries within the controller file system. {@link Files#copy} lets the operating system
+     * copy the data without passing it through the JVM, and may clone it on file systems that support it.
+     *
+     * @param link whether to create hard links instead of copies for files on the same file system as the target
+     */
+    private Map<String, Integer> copyLocally(List<Entry> pending, final File target, boolean link)
+            throws IOException {
+        Files.createDirectories(target.toPath());
+        final FileStore targetStore = link ? Files.getFileStore(target.toPath()) : null;
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        FileVisitor copier = new FileVisitor() {
+            @Override
+            public void visit(File f, String relativePath) throws IOException {
+                Path src = f.toPath();
+                Path dst = new File(target, relativePath).toPath();
+                transferredBytes.addAndGet(f.length());
+                if (targetStore != null && targetStore.equals(Files.getFileStore(src))) {
+                    ContentStore.linkOrCopy(src, dst);
+                } else {
+                    Files.createDirectories(dst.getParent());
+                    Files.copy(src, dst, StandardCopyOption.REPLACE_EXISTING, LinkOption.NOFOLLOW_LINKS);
+                }
+            }
+        };
+        for (Entry entry : pending) {
+            result.put(entry.path, entry.visit(copier));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the path of the given destination relative to the storage, which is empty for the storage itself,
+     * as for attachments of a test class with an empty name.
+     */
+    private String relativize(FilePath dst) {
+        String root = storage.getRemote();
+        String path = dst.getRemote();
+        if (path.equals(root)) {
+            return "";
+        }
+        if (!path.startsWith(root) || path.length() <= root.length() + 1
+                || path.charAt(root.length()) != '/' && path.charAt(root.length()) != '\\') {
+            throw new IllegalArgumentException(path + " is not located below " + root);
+        }
+        return path.substring(root.length() + 1).replace('\\', '/');
+    }
+
+    /**
+     * Checks a path the agent returned for a file of the given entry. Such paths are resolved against
+     * the controller file system, so a compromised agent must not be able to name anything but a file of that entry.
+     *
+     * @param entry the entry the agent claims the file belongs to, {@code null} if there is no such entry
+     * @param path the destination of the file, relative to the attachment storage with {@code /} as separator
+     * @throws IOException if the file does not belong to the entry
+     */
+    static void checkPath(@CheckForNull Entry entry, String path) throws IOException {
+        boolean belongs = entry != null && path != null && isNormalized(path) && (entry.directory
+                ? entry.path.isEmpty() || path.startsWith(entry.path + "/")
+                : path.equals(entry.path));
+        if (!belongs) {
+            throw new IOException("The agent returned " + path + " as a file of the attachments at "
+                    + (entry == null ? null : entry.path) + ", refusing to copy it");
+        }
+    }
+
+    /**
+     * Whether the given path is relative, uses {@code /} as separator and has no empty, {@code .} or {@code ..}
+     * segments, so that it names something below any directory it is resolved against.
+     */
+    static boolean isNormalized(String path) {
+        if (path.isEmpty() || path.indexOf('\\') >= 0 || path.indexOf('\0') >= 0) {
+            return false;
+        }
+        for (String segment : path.split("/", -1)) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Resolves a path relative to the attachment storage against a directory on the controller,
+     * making sure that the result is located below that directory.
+     */
+    static Path resolve(Path directory, String path) throws IOException {
+        Path root = directory.normalize();
+        Path file = root.resolve(path).normalize();
+        if (!isNormalized(path) || !file.startsWith(root) || file.equals(root)) {
+            throw new IOException(path + " is not located below " + directory);
+        }
+        return file;
+    }
+
+    /** A file or directory to be copied, identified by its destination relative to the attachment storage. */
+    static final class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String source;
+        private final String path;
+        private final boolean directory;
+
+        /** Files of a directory entry not to be copied, relative to the attachment storage with {@code /} as separator. */
+        private final Set<String> excluded = new HashSet<String>();
+
+        Entry(String source, String path, boolean directory) {
+            this.source = source;
+            this.path = path;
+            this.directory = directory;
+        }
+
+        /** Returns the path of a file of the entry with the given path, relative to that entry. */
+        static String relativize(String entry, String path) {
+            if (entry.isEmpty()) {
+                return path;
+            }
+            // the path of the entry itself for a single file
+            return path.length() > entry.length() ? path.substring(entry.length() + 1) : "";
+        }
+
+        /** Feeds the file(s) of this entry to the visitor, returning how many files were visited. */
+        int visit(FileVisitor visitor) throws IOException {
+            return visit(visitor, null);
+        }
+
+        /**
+         * Same as {@link #visit(FileVisitor)}, but only for the files accepted by the filter, if any.
+         * <p>
+         * Symbolic links within a directory are never visited, nor files that are only reached through one,
+         * so no file outside of the workspace can end up in the attachment storage by being put next to attachments.
+         * A single file entry, i.e. a file referenced from the test output, which may name any file already,
+         * is followed to the file a link points to, which is visited under the name of the entry.
+         */
+        int visit(final FileVisitor visitor, @CheckForNull final FileFilter filter) throws IOException {
+            File src = new File(source);
+            if (directory) {
+                if (!src.isDirectory()) {
+                    return 0;
+                }
+                final Path realSrc = src.toPath().toRealPath();
+                final int[] count = new int[1];
+                // Same defaults as FilePath.copyRecursiveTo(FilePath)
+                new DirScanner.Glob("**/*", null).scan(src, new FileVisitor() {
+                    @Override
+                    public void visit(File f, String relativePath) throws IOException {
+                        String p = path.isEmpty() ? relativePath : path + "/" + relativePath;
+                        if (excluded.contains(p.replace(File.separatorChar, '/')) || isLinked(f.toPath(), realSrc)) {
+                            return;
+                        }
+                        if (filter == null || filter.accept(f)) {
+                            visitor.visit(f, p);
+                            count[0]++;
+                        }
+                    }
+                });
+                return count[0];
+            }
+            if (!src.isFile() || filter != null && !filter.accept(src)) {
+                return 0;
+            }
+            // visitors copy links as links
+            visitor.visit(Files.isSymbolicLink(src.toPath()) ? src.toPath().toRealPath().toFile() : src, path);
+            return 1;
+        }
+
+        private static boolean isLinked(Path file, Path realDirectory) throws IOException {
+            return Files.isSymbolicLink(file) || !file.toRealPath().startsWith(realDirectory);
+        }
+    }
+
+    /** Lists the files of entries on the agent, see {@link #list}. */
+    private static final class ListFiles extends MasterToSlaveFileCallable<Map<String, List<String>>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Entry> entries;
+
+        ListFiles(List<Entry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public Map<String, List<String>> invoke(File workspace, VirtualChannel channel) throws IOException {
+            Map<String, List<String>> listing = new HashMap<String, List<String>>();
+            for (final Entry entry : entries) {
+                final List<String> files = new ArrayList<String>();
+                entry.visit(new FileVisitor() {
+                    @Override
+                    public void visit(File f, String path) {
+                        files.add(Entry.relativize(entry.path, path).replace(File.separatorChar, '/'));
+                    }
+                });
+                if (!files.isEmpty()) {
+                    listing.put(entry.path, files);
+                }
+            }
+            return listing;
+        }
+    }
+
+    /** A file of an entry, along with its size, see {@link #applyBudget}. */
+    private static final class MeasuredFile implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /** {@link Entry#path} of the entry the file belongs to. */
+        final String entry;
+        /** Destination of the file, relative to the attachment storage with {@code /} as separator. */
+        final String path;
+        final String source;
+        final long size;
+
+        MeasuredFile(String entry, String path, String source, long size) {
+            this.entry = entry;
+            this.path = path;
+            this.source = source;
+            this.size = size;
+        }
+    }
+
+    /** Measures the files of entries on the agent, see {@link #applyBudget}. */
+    private static final class MeasureFiles extends MasterToSlaveFileCallable<List<MeasuredFile>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Entry> entries;
+
+        MeasureFiles(List<Entry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public List<MeasuredFile> invoke(File workspace, VirtualChannel channel) throws IOException {
+            final List<MeasuredFile> result = new ArrayList<MeasuredFile>();
+            for (final Entry entry : entries) {
+                entry.visit(new FileVisitor() {
+                    @Override
+                    public void visit(File f, String relativePath) {
+                        result.add(new MeasuredFile(entry.path, relativePath.replace(File.separatorChar, '/'), f.getPath(), f.length()));
+                    }
+                });
+            }
+            return result;
+        }
+    }
+
+    /** A text file to be kept truncated to its first and last bytes. */
+    private static final class Truncation implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /** {@link Entry#path} of the entry the file belongs to. */
+        final String entry;
+        /** Destination of the file, relative to the attachment storage with {@code /} as separator. */
+        final String path;
+        final String source;
+        /** Number of bytes to keep, half of them from the start of the file and half from its end. */
+        final long kept;
+
+        Truncation(String entry, String path, String source, long kept) {
+            this.entry = entry;
+            this.path = path;
+            this.source = source;
+            this.kept = kept;
+        }
+    }
+
+    /**
+     * Writes truncated copies of files into the directory it is invoked on, returning the paths of the copies.
+     * The copies keep the names of the files, so they are still told apart by their extensions.
+     */
+    private static final class Truncate extends MasterToSlaveFileCallable<List<String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Truncation> truncations;
+
+        Truncate(List<Truncation> truncations) {
+            this.truncations = truncations;
+        }
+
+        @Override
+        public List<String> invoke(File dir, VirtualChannel channel) throws IOException {
+            List<String> copies = new ArrayList<String>(truncations.size());
+            for (int i = 0; i < truncations.size(); i++) {
+                Truncation truncation = truncations.get(i);
+                Path src = new File(truncation.source).toPath();
+                Path dst = new File(dir, Integer.toString(i)).toPath()
+                        .resolve(truncation.path.substring(truncation.path.lastIndexOf('/') + 1));
+                Files.createDirectories(dst.getParent());
+                try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(dst, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    long length = in.size();
+                    if (length <= truncation.kept) {
+                        copy(in, 0, length, out);
+                    } else {
+                        long head = truncation.kept / 2;
+                        long tail = truncation.kept - head;
+                        copy(in, 0, head, out);
+                        String marker = "\n\n[... " + (length - head - tail) + " bytes truncated ...]\n\n";
+                        ByteBuffer buffer = ByteBuffer.wrap(marker.getBytes(StandardCharsets.UTF_8));
+                        while (buffer.hasRemaining()) {
+                            out.write(buffer);
+                        }
+                        copy(in, length - tail, tail, out);
+                    }
+                }
+                Files.setLastModifiedTime(dst, Files.getLastModifiedTime(src));
+                copies.add(dst.toString());
+            }
+            return copies;
+        }
+
+        private static void copy(FileChannel in, long position, long count, FileChannel out) throws IOException {
+            while (count > 0) {
+                long copied = in.transferTo(position, count, out);
+                if (copied <= 0) {
+                    // the file was truncated in the meantime
+                    break;
+                }
+                position += copied;
+                count -= copied;
+            }
+        }
+    }
+
+    /** Where a file of an entry is to be stored, along with the digest of its content. */
+    static final class FileDigest implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /** {@link Entry#path} of the entry the file belongs to. */
+        final String entry;
+        /** Destination of the file, relative to the attachment storage. */
+        final String path;
+        final String source;
+        final String digest;
+
+        FileDigest(String entry, String path, String source, String digest) {
+            this.entry = entry;
+            this.path = path;
+            this.source = source;
+            this.digest = digest;
+        }
+    }
+
+    /** Computes the digest of every file of the entries, where the files are. */
+    private static final class ComputeDigests extends MasterToSlaveFileCallable<List<FileDigest>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Entry> entries;
+
+        ComputeDigests(List<Entry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public List<FileDigest> invoke(File workspace, VirtualChannel channel) throws IOException {
+            final List<FileDigest> result = new ArrayList<FileDigest>();
+            for (final Entry entry : entries) {
+                entry.visit(new FileVisitor() {
+                    @Override
+                    public void visit(File f, String relativePath) throws IOException {
+                        result.add(new FileDigest(entry.path, relativePath.replace(File.separatorChar, '/'), f.getPath(),
+                                ContentStore.digest(f.toPath())));
+                    }
+                });
+            }
+            return result;
+        }
+    }
+
+    /** What {@link SendAsTar} sent. */
+    private static final class Sent implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        long bytes;
+        long textBytes;
+        long compressedTextBytes;
+    }
+
+    /**
+     * Writes all entries to a tar stream on the agent, which is read back on the controller.
+     * <p>
+     * If there is a separate pipe for text files, those are written to it first, as a compressed tar stream.
+     */
+    private static final class SendAsTar extends MasterToSlaveFileCallable<Sent> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Entry> entries;
+        private final Pipe pipe;
+        @CheckForNull
+        private final Pipe textPipe;
+
+        SendAsTar(List<Entry> entries, Pipe pipe, @CheckForNull Pipe textPipe) {
+            this.entries = entries;
+            this.pipe = pipe;
+            this.textPipe = textPipe;
+        }
+
+        @Override
+        public Sent invoke(File workspace, VirtualChannel channel) throws IOException {
+            final Sent sent = new Sent();
+            FileFilter binary = null;
+            if (textPipe != null) {
+                FileFilter text = new FileFilter() {
+                    @Override
+                    public boolean accept(File f) {
+                        return TextAttachments.isText(f.getName());
+                    }
+                };
+                CountingOutputStream counter = new CountingOutputStream(textPipe.getOut());
+                try (OutputStream out = counter; Archiver archiver = ArchiverFactory.TARGZ.create(out)) {
+                    for (Entry entry : entries) {
+                        sent.counts.put(entry.path, entry.visit(new FileVisitor() {
+                            @Override
+                            public void visit(File f, String relativePath) throws IOException {
+                                sent.textBytes += f.length();
+                                sent.bytes += f.length();
+                                archiver.visit(f, relativePath);
+                            }
+                        }, text));
+                    }
+                }
+                sent.compressedTextBytes = counter.count;
+                binary = new FileFilter() {
+                    @Override
+                    public boolean accept(File f) {
+                        return !TextAttachments.isText(f.getName());
+                    }
+                };
+            }
+            try (OutputStream out = pipe.getOut(); Archiver archiver = ArchiverFactory.TAR.create(out)) {
+                for (Entry entry : entries) {
+                    Integer count = sent.counts.get(entry.path);
+                    sent.counts.put(entry.path, (count == null ? 0 : count) + entry.visit(new FileVisitor() {
+                        @Override
+                        public void visit(File f, String relativePath) throws IOException {
+                            sent.bytes += f.length();
+                            archiver.visit(f, relativePath);
+                        }
+                    }, binary));
+                }
+            }
+            return sent;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package hudson.plugins.junitattachments;
+
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.test.TestResult;
+
+/**
+ * Which tests attachments are captured for, see {@link AttachmentPublisher#getCapturePolicy()}.
+ * <p>
+ * Attachments of a test class directory and of the suite output are captured if they are for any test of
+ * the class or suite.
+ */
+public enum CapturePolicy {
+
+    ALL("All tests"),
+    FAILED("Failed tests"),
+    /** Also tests that just passed after failing in the previous build, and so may well fail again. */
+    FAILED_AND_FLAKY("Failed tests, and tests that passed after failing in the previous build"),
+    FAILED_AND_PREVIOUS_FAILURES("Failed tests, and tests that failed in one of the previous builds");
+
+    private final String description;
+
+    CapturePolicy(String description) {
+        this.description = description;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Whether attachments are captured for the given test.
+     *
+     * @param previousBuilds the number of previous builds to look at for {@link #FAILED_AND_PREVIOUS_FAILURES}
+     */
+    boolean captures(CaseResult test, int previousBuilds) {
+        if (this == ALL || test.isFailed()) {
+            return true;
+        }
+        try {
+            switch (this) {
+                case FAILED_AND_FLAKY:
+                    return test.getStatus() == CaseResult.Status.FIXED;
+                case FAILED_AND_PREVIOUS_FAILURES:
+                    TestResult previous = test;
+                    for (int i = 0; i < previousBuilds; i++) {
+                        previous = previous.getPreviousResult();
+                        if (previous == null) {
+                            return false;
+                        }
+                        if (previous.getFailCount() > 0) {
+                            return true;
+                        }
+                    }
+                    return false;
+                default:
+                    return false;
+            }
+        } catch (RuntimeException e) {
+            // the history is not available, better capture too much than too little
+            return true;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package hudson.plugins.junitattachments;
+
+import hudson.Functions;
+import hudson.Util;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long capturing the attachments of a {@code junit} step took, phase by phase, and how much work each phase did.
+ * <p>
+ * Kept along with the {@link AttachmentPublisher.Data} of the step, and available through the remote API
+ * of the build, see {@link AttachmentRunAction#getStatistics()}.
+ */
+@ExportedBean
+public final class CaptureStatistics implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** The phases of a capture, in the order they run. */
+    public enum Phase {
+        REPORTS("report discovery"),
+        MARKERS("marker scan"),
+        EXISTENCE("existence checks"),
+        LISTING("listing"),
+        TRANSFER("copy"),
+        RESCAN("directory rescans"),
+        COMPRESSION("compression");
+
+        private final String description;
+
+        Phase(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    /** Phases that ran, in the order of {@link Phase}. */
+    private final List<PhaseStatistics> phases = new ArrayList<PhaseStatistics>();
+
+    /** See {@link #isIncomplete()}. */
+    private volatile boolean incomplete;
+
+    /**
+     * Records the work of a phase, adding to what was recorded for it before.
+     *
+     * @param nanos the wall time the phase took
+     * @param files the number of files the phase dealt with
+     * @param bytes the number of bytes the phase copied or read
+     * @param roundTrips the number of calls to the agent the phase made
+     */
+    synchronized void record(Phase phase, long nanos, int files, long bytes, int roundTrips) {
+        int i = 0;
+        while (i < phases.size() && phases.get(i).phase.compareTo(phase) < 0) {
+            i++;
+        }
+        if (i == phases.size() || phases.get(i).phase != phase) {
+            phases.add(i, new PhaseStatistics(phase));
+        }
+        PhaseStatistics p = phases.get(i);
+        p.nanos += nanos;
+        p.files += files;
+        p.bytes += bytes;
+        p.roundTrips += roundTrips;
+    }
+
+    @Exported(inline = true)
+    public synchronized List<PhaseStatistics> getPhases() {
+        List<PhaseStatistics> copy = new ArrayList<PhaseStatistics>(phases.size());
+        for (PhaseStatistics p : phases) {
+            copy.add(new PhaseStatistics(p));
+        }
+        return copy;
+    }
+
+    /**
+     * Whether some attachment files never arrived, as copying them in the background failed,
+     * or the controller stopped before it was done. Also set while the files are still being copied.
+     */
+    @Exported
+    public boolean isIncomplete() {
+        return incomplete;
+    }
+
+    void setIncomplete(boolean incomplete) {
+        this.incomplete = incomplete;
+    }
+
+    /** Wall time of all phases together, in milliseconds. */
+    @Exported
+    public synchronized long getDurationMillis() {
+        long nanos = 0;
+        for (PhaseStatistics p : phases) {
+            nanos += p.nanos;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * Prints the statistics of each phase, one line per phase.
+     */
+    void print(PrintStream logger) {
+        List<PhaseStatistics> phases = getPhases();
+        if (phases.isEmpty()) {
+            return;
+        }
+        logger.println("Captured attachments in " + Util.getTimeSpanString(getDurationMillis()) + ":");
+        for (PhaseStatistics p : phases) {
+            StringBuilder line = new StringBuilder("  ").append(p.phase.getDescription()).append(": ")
+                    .append(Util.getTimeSpanString(p.getDurationMillis()));
+            if (p.files > 0) {
+                line.append(", ").append(p.files).append(" files");
+            }
+            if (p.bytes > 0) {
+                line.append(", ").append(Functions.humanReadableByteSize(p.bytes));
+            }
+            if (p.roundTrips > 0) {
+                line.append(", ").append(p.roundTrips).append(" round trips");
+            }
+            logger.println(line);
+        }
+    }
+
+    /** Writes a consistent copy, even while phases are still being recorded. */
+    private synchronized Object writeReplace() {
+        CaptureStatistics copy = new CaptureStatistics();
+        copy.phases.addAll(getPhases());
+        copy.incomplete = incomplete;
+        return copy;
+    }
+
+    /** The work of a single phase. */
+    @ExportedBean
+    public static final class PhaseStatistics implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final Phase phase;
+        private long nanos;
+        private int files;
+        private long bytes;
+        private int roundTrips;
+
+        PhaseStatistics(Phase phase) {
+            this.phase = phase;
+        }
+
+        PhaseStatistics(PhaseStatistics p) {
+            this.phase = p.phase;
+            this.nanos = p.nanos;
+            this.files = p.files;
+            this.bytes = p.bytes;
+            this.roundTrips = p.roundTrips;
+        }
+
+        @Exported
+        public Phase getPhase() {
+            return phase;
+        }
+
+        @Exported
+        public long getDurationMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+
+        @Exported
+        public int getFiles() {
+            return files;
+        }
+
+        @Exported
+        public long getBytes() {
+            return bytes;
+        }
+
+        /** Number of calls to the agent, which is {@code 0} for a workspace on the controller. */
+        @Exported
+        public int getRoundTrips() {
+            return roundTrips;
+        }
+    }
+}
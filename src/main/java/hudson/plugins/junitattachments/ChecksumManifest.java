@@ -0,0 +1,83 @@
+package hudson.plugins.junitattachments;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Digests of all files captured into an attachment storage directory, kept in a file next to them
+ * in the same format as {@code sha256sum}, i.e. one {@code <digest>  <relative path>} line per file.
+ * <p>
+ * A later build reads the manifest of the previous build to find attachments it does not need to transfer again.
+ */
+final class ChecksumManifest {
+
+    static final String FILE_NAME = ".sha256sums";
+
+    private ChecksumManifest() {
+    }
+
+    /**
+     * Reads the manifest of the given attachment storage directory.
+     *
+     * @return the digests keyed by the path relative to the directory, empty if there is no manifest;
+     *         lines that do not hold a digest and a normalized relative path are left out
+     */
+    static Map<String, String> read(Path storage) throws IOException {
+        Map<String, String> digests = new TreeMap<String, String>();
+        try (BufferedReader in = Files.newBufferedReader(storage.resolve(FILE_NAME), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int separator = line.indexOf("  ");
+                if (separator <= 0) {
+                    continue;
+                }
+                String path = line.substring(separator + 2);
+                String digest = line.substring(0, separator);
+                // written by an earlier build, possibly from what a compromised agent returned
+                if (AttachmentTransfer.isNormalized(path) && ContentStore.isDigest(digest)) {
+                    digests.put(path, digest);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return Collections.emptyMap();
+        }
+        return digests;
+    }
+
+    /**
+     * Adds the given digests to the manifest of the given attachment storage directory,
+     * replacing the manifest atomically so a concurrent reader never sees a partial one.
+     */
+    static void update(Path storage, Map<String, String> digests) throws IOException {
+        Map<String, String> all = new TreeMap<String, String>(read(storage));
+        all.putAll(digests);
+
+        Files.createDirectories(storage);
+        Path tmp = Files.createTempFile(storage, FILE_NAME, ".tmp");
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, String> e : all.entrySet()) {
+                    if (e.getKey().indexOf('\n') >= 0) {
+                        continue;
+                    }
+                    out.write(e.getValue());
+                    out.write("  ");
+                    out.write(e.getKey());
+                    out.write('\n');
+                }
+            }
+            Files.move(tmp, storage.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package hudson.plugins.junitattachments;
+
+import hudson.model.Job;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Content-addressed store of attachment files, shared by all builds of a job.
+ * <p>
+ * Every file is stored once under its SHA-256 digest and hard-linked into the {@code junit-attachments}
+ * directory of each build that attached it, so the per-build layout and all URLs stay exactly the same.
+ * Where hard links are not possible the file is copied instead.
+ * <p>
+ * A stored file that is no longer linked from any build is removed by {@link #pruneIfDue()}.
+ * Linking never modifies the stored file, as that would also modify the attachments of older builds,
+ * so a build may find a file it is about to link pruned, see {@link #link}.
+ */
+final class ContentStore {
+
+    private static final Logger LOGGER = Logger.getLogger(ContentStore.class.getName());
+
+    static final String ALGORITHM = "SHA-256";
+
+    /** Files added more recently than this are never pruned, so a build can still link what another build just added. */
+    private static final long GRACE_PERIOD = TimeUnit.DAYS.toMillis(1);
+
+    private static final String PRUNED_MARKER = ".pruned";
+
+    private static final String INCOMING_PREFIX = "incoming";
+
+    /** What {@link #digest} returns, in lowercase hex. */
+    private static final Pattern DIGEST = Pattern.compile("[0-9a-f]{64}");
+
+    private final Path root;
+
+    ContentStore(File root) {
+        this.root = root.toPath();
+    }
+
+    static ContentStore forJob(Job<?, ?> job) {
+        return new ContentStore(new File(job.getRootDir(), "junit-attachments-store"));
+    }
+
+    Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Whether the given string is a digest as returned by {@link #digest}, so it can safely be resolved
+     * against the store. Digests computed by an agent must be checked with this before they are used at all.
+     */
+    static boolean isDigest(String digest) {
+        return digest != null && DIGEST.matcher(digest).matches();
+    }
+
+    private Path getFile(String digest) {
+        if (!isDigest(digest)) {
+            throw new IllegalArgumentException("Not a digest: " + digest);
+        }
+        return root.resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    boolean contains(String digest) {
+        return Files.isRegularFile(getFile(digest));
+    }
+
+    /**
+     * Creates a directory on the same file system as the store, to receive files before they are {@link #add added}.
+     */
+    Path createIncomingDirectory() throws IOException {
+        Files.createDirectories(root);
+        return Files.createTempDirectory(root, INCOMING_PREFIX);
+    }
+
+    /**
+     * Moves a received file into the store.
+     *
+     * @param digest the digest the agent computed for the file
+     * @param file a file in a directory returned by {@link #createIncomingDirectory()}
+     * @return the digest the file is stored under, which differs from the given one if the file changed
+     *         between hashing and sending it
+     */
+    String add(String digest, Path file) throws IOException {
+        String actual = digest(file);
+        if (!actual.equals(digest)) {
+            LOGGER.fine(() -> file + " was expected to have digest " + digest + " but has " + actual);
+        }
+        Path target = getFile(actual);
+        Files.createDirectories(target.getParent());
+        // mark it as fresh, as the tar entry carries the modification time from the agent
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        try {
+            Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            // a concurrent build added the same content
+            Files.delete(file);
+        }
+        return actual;
+    }
+
+    /**
+     * Makes the stored file with the given digest available at the given location.
+     *
+     * @throws NoSuchFileException if the store does not contain the file (anymore)
+     */
+    void link(String digest, Path dst) throws IOException {
+        linkOrCopy(getFile(digest), dst);
+    }
+
+    /**
+     * Makes an existing file available at another location of the same file system,
+     * as a hard link where possible and as a copy otherwise.
+     */
+    static void linkOrCopy(Path existing, Path dst) throws IOException {
+        Files.createDirectories(dst.getParent());
+        Files.deleteIfExists(dst);
+        try {
+            Files.createLink(dst, existing);
+        } catch (NoSuchFileException e) {
+            throw e;
+        } catch (IOException | UnsupportedOperationException e) {
+            // e.g. the file system does not support hard links, or the link count limit was reached
+            LOGGER.log(Level.FINE, "Could not link " + dst + " to " + existing + ", copying it", e);
+            Files.copy(existing, dst, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Removes stored files that no build links to anymore, at most once a day.
+     */
+    void pruneIfDue() {
+        Path marker = root.resolve(PRUNED_MARKER);
+        long now = System.currentTimeMillis();
+        try {
+            if (!Files.isDirectory(root)
+                    || Files.exists(marker) && now - Files.getLastModifiedTime(marker).toMillis() < GRACE_PERIOD) {
+                return;
+            }
+            if (Files.exists(marker)) {
+                Files.setLastModifiedTime(marker, FileTime.fromMillis(now));
+            } else {
+                Files.createFile(marker);
+            }
+            prune(now);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to prune attachment store " + root, e);
+        }
+    }
+
+    private void prune(long now) throws IOException {
+        int removed = 0;
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root)) {
+            for (Path dir : dirs) {
+                if (!Files.isDirectory(dir)) {
+                    continue;
+                }
+                boolean incoming = dir.getFileName().toString().startsWith(INCOMING_PREFIX);
+                if (incoming && now - Files.getLastModifiedTime(dir).toMillis() < GRACE_PERIOD) {
+                    // a transfer may still be in progress
+                    continue;
+                }
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                    for (Path file : files) {
+                        // left-overs of an aborted transfer, or content only the store still refers to
+                        if (incoming || now - Files.getLastModifiedTime(file).toMillis() >= GRACE_PERIOD
+                                && (Integer) Files.getAttribute(file, "unix:nlink") <= 1) {
+                            Files.deleteIfExists(file);
+                            removed++;
+                        }
+                    }
+                }
+                if (incoming) {
+                    Files.deleteIfExists(dir);
+                }
+            }
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // no link counts on this platform, so there is no telling which files are still in use
+            LOGGER.log(Level.FINE, "Cannot prune attachment store " + root, e);
+        }
+        LOGGER.fine("removed " + removed + " unused files from " + root);
+    }
+
+    static String digest(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return digest(in);
+        }
+    }
+
+    static String digest(InputStream in) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            md.update(buffer, 0, n);
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : md.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
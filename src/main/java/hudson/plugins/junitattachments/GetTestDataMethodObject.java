@@ -13,20 +13,35 @@ import hudson.model.TaskListener;
 import hudson.tasks.junit.CaseResult;
 import hudson.tasks.junit.SuiteResult;
 import hudson.tasks.junit.TestResult;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import org.apache.tools.ant.DirectoryScanner;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * This class is a helper for {@code hudson.tasks.junit.TestDataPublisher.getTestData(AbstractBuild<?, ?>, Launcher,
@@ -55,6 +70,29 @@ public class GetTestDataMethodObject {
     private final TaskListener listener;
     private final List<String> enclosingBlocks;
 
+    /** The publisher configuration that controls how attachments are captured. */
+    private final AttachmentPublisher settings;
+
+    /** Classes with tests selected by the {@link CapturePolicy}, or {@code null} if all tests are. */
+    @CheckForNull
+    private Set<String> selectedClasses;
+
+    /** Tests selected by the {@link CapturePolicy}, see {@link #getTestKey}, or {@code null} if all tests are. */
+    @CheckForNull
+    private Set<String> selectedTests;
+
+    /** Files referenced from the test output, which still have to be resolved on the agent. */
+    private final List<AttachmentReference> references = new ArrayList<AttachmentReference>();
+
+    /** Files to be copied from the workspace, collected while inspecting the test results. */
+    private final AttachmentTransfer transfer;
+
+    /** How long each phase of the capture took, and how much work it did. */
+    private final CaptureStatistics statistics = new CaptureStatistics();
+
+    /** Number of calls to the agent made outside of the {@link #transfer}. */
+    private int roundTrips;
+
     /**
      * The workspace to check in for attachments.
      */
@@ -73,7 +111,9 @@ public class GetTestDataMethodObject {
         this.testResult = testResult;
         this.listener = listener;
         this.enclosingBlocks = Collections.emptyList();
+        this.settings = new AttachmentPublisher();
         attachmentsStorage = AttachmentPublisher.getAttachmentPath(build);
+        transfer = new AttachmentTransfer(attachmentsStorage);
         workspace = build.getWorkspace();
     }
 
@@ -86,7 +126,23 @@ public class GetTestDataMethodObject {
     public GetTestDataMethodObject(Run<?, ?> build, @NonNull FilePath workspace,
                                    @SuppressWarnings("unused") Launcher launcher,
                                    TaskListener listener, TestResult testResult) {
+        this(build, workspace, launcher, listener, testResult, new AttachmentPublisher());
+    }
+
+    /**
+     * @param build
+     *            see {@link GetTestDataMethodObject#build}
+     * @param testResult
+     *            see {@link GetTestDataMethodObject#testResult}
+     * @param settings
+     *            see {@link GetTestDataMethodObject#settings}
+     */
+    public GetTestDataMethodObject(Run<?, ?> build, @NonNull FilePath workspace,
+                                   @SuppressWarnings("unused") Launcher launcher,
+                                   TaskListener listener, TestResult testResult,
+                                   @NonNull AttachmentPublisher settings) {
         this.build = build;
+        this.settings = settings;
         this.testResult = testResult;
         this.listener = listener;
         this.workspace = workspace;
@@ -101,17 +157,30 @@ public class GetTestDataMethodObject {
         }
         this.enclosingBlocks = blocks;
 
+        this.attachmentsStorage = getAttachmentsStorage(build, blocks);
+        this.transfer = new AttachmentTransfer(attachmentsStorage);
+    }
+
+    private static FilePath getAttachmentsStorage(Run<?, ?> build, List<String> enclosingBlocks) {
         FilePath baseStorage = AttachmentPublisher.getAttachmentPath(build);
-        if (!blocks.isEmpty()) {
-            baseStorage = baseStorage.child(String.join("-", blocks));
+        if (!enclosingBlocks.isEmpty()) {
+            baseStorage = baseStorage.child(String.join("-", enclosingBlocks));
         }
-        this.attachmentsStorage = baseStorage;
+        return baseStorage;
     }
 
     public List<String> getEnclosingBlocks() {
         return enclosingBlocks;
     }
 
+    /**
+     * Returns the statistics of the capture, which are still being added to while attachments are copied
+     * in the background, see {@link AttachmentPublisher#isCaptureAsynchronously()}.
+     */
+    public CaptureStatistics getStatistics() {
+        return statistics;
+    }
+
     /**
      * Returns a Map of classname vs. the stored attachments in a directory named as the test class.
      *
@@ -131,126 +200,558 @@ public class GetTestDataMethodObject {
             final FilePath reportFile = workspace.child(report.getValue());
             final FilePath target = AttachmentPublisher.getAttachmentPath(attachmentsStorage, className, null);
             attachFilesForReport(className, reportFile, target);
-            attachStdInAndOut(className, reportFile);
+            attachStdInAndOut(className, reportFile, target);
         }
+
+        final ContentStore contentStore = settings.isDeduplicateAttachments() ? ContentStore.forJob(build.getParent()) : null;
+        transfer.setContentStore(contentStore);
+        transfer.setLinkLocalFiles(settings.isLinkLocalAttachments());
+        transfer.setCompressText(settings.isCompressTextAttachments());
+        AttachmentBudget budget = settings.createBudget();
+        transfer.setBudget(budget);
+        if (settings.isReuseUnchangedAttachments()) {
+            Run<?, ?> previous = build.getPreviousBuild();
+            if (previous != null) {
+                transfer.setPreviousStorage(getAttachmentsStorage(previous, enclosingBlocks));
+            }
+        }
+
+        if (settings.isCaptureAsynchronously()) {
+            // only list the files now, and leave copying them to the background
+            long start = System.nanoTime();
+            int trips = transfer.getRoundTrips();
+            int listed = transfer.list(workspace);
+            statistics.record(CaptureStatistics.Phase.LISTING, System.nanoTime() - start, listed, 0,
+                    transfer.getRoundTrips() - trips);
+            removeSkippedAttachments();
+            if (budget != null) {
+                budget.printSummary(listener.getLogger());
+            }
+            for (String className : new TreeSet<String>(reports.keySet())) {
+                registerFilesForReport(className, listFilesForReport(className));
+            }
+            statistics.print(listener.getLogger());
+            if (listed > 0) {
+                listener.getLogger().println("Capturing " + listed + " attachment files in the background.");
+                // until the files arrived, also if the controller stops before that
+                statistics.setIncomplete(true);
+                AttachmentCaptures.submit(build, new AttachmentCaptures.Capture() {
+                    @Override
+                    public void run() throws IOException, InterruptedException {
+                        captureInBackground(contentStore);
+                    }
+                });
+            }
+            return attachments;
+        }
+
+        int parallelism = settings.getCaptureThreads();
+        ExecutorService executor = createExecutor(parallelism);
+        try {
+            // copy everything that was collected above in one go, or in one go per batch of test classes
+            transfer(executor, parallelism, true);
+            removeSkippedAttachments();
+            if (budget != null) {
+                budget.printSummary(listener.getLogger());
+            }
+
+            long start = System.nanoTime();
+            final Map<String, List<String>> classFiles = new ConcurrentHashMap<String, List<String>>();
+            List<Callable<Void>> scans = new ArrayList<Callable<Void>>();
+            for (final String className : reports.keySet()) {
+                scans.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        List<String> files = scanFilesForReport(className);
+                        if (files != null) {
+                            classFiles.put(className, files);
+                        }
+                        return null;
+                    }
+                });
+            }
+            runAll(executor, scans);
+            int scanned = 0;
+            for (List<String> files : classFiles.values()) {
+                scanned += files.size();
+            }
+            statistics.record(CaptureStatistics.Phase.RESCAN, System.nanoTime() - start, scanned, 0, 0);
+
+            // merge in a stable order, whichever order the classes were processed in
+            for (String className : new TreeSet<String>(reports.keySet())) {
+                registerFilesForReport(className, classFiles.get(className));
+            }
+
+            if (settings.isStoreTextAttachmentsCompressed()) {
+                compressTextAttachments(executor);
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+        if (contentStore != null) {
+            contentStore.pruneIfDue();
+        }
+        statistics.print(listener.getLogger());
         return attachments;
     }
 
-    @SuppressFBWarnings(value = "NP_NULL_ON_SOME_PATH_FROM_RETURN_VALUE", justification = "TODO needs triage")
-    private void attachFilesForReport(final String className, final FilePath reportFile, final FilePath target)
+    /**
+     * Copies the files that were listed by {@link #getAttachments()}, after the step has returned.
+     */
+    private void captureInBackground(@CheckForNull ContentStore contentStore) throws IOException, InterruptedException {
+        int parallelism = settings.getCaptureThreads();
+        ExecutorService executor = createExecutor(parallelism);
+        try {
+            // the build log may well be closed by now
+            transfer(executor, parallelism, false);
+            if (settings.isStoreTextAttachmentsCompressed()) {
+                compressTextAttachments(executor);
+            }
+            statistics.setIncomplete(false);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            // a completing build waits for this, so its log is still open unless it ran in a Pipeline
+            listener.getLogger().println("Failed to copy the attachments from the workspace, some of them are missing: " + e);
+            throw e;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            // keep the statistics of the transfer with the build, they are part of its test data,
+            // along with whether all files arrived
+            build.save();
+        }
+        if (contentStore != null) {
+            contentStore.pruneIfDue();
+        }
+    }
+
+    @CheckForNull
+    private ExecutorService createExecutor(int parallelism) {
+        return parallelism > 1 ? Executors.newFixedThreadPool(parallelism,
+                new NamingThreadFactory(new DaemonThreadFactory(), "junit-attachments capture for " + build)) : null;
+    }
+
+    private void transfer(@CheckForNull ExecutorService executor, int parallelism, boolean log)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long bytes = transfer.getTransferredBytes();
+        int trips = transfer.getRoundTrips();
+        int copied = transfer.transfer(workspace, executor, parallelism);
+        statistics.record(CaptureStatistics.Phase.TRANSFER, System.nanoTime() - start, copied,
+                transfer.getTransferredBytes() - bytes, transfer.getRoundTrips() - trips);
+        LOG.fine("transferred " + copied + " attachment files to " + attachmentsStorage);
+        long uncompressed = transfer.getUncompressedTextBytes();
+        if (uncompressed > 0 && log) {
+            long compressed = transfer.getCompressedTextBytes();
+            listener.getLogger().println("Compressed text attachments from " + uncompressed + " to " + compressed
+                    + " bytes for the transfer, saving " + (uncompressed - compressed) + " bytes.");
+        }
+    }
+
+    /**
+     * Forgets the attachments referenced from the test output that were skipped for exceeding the size limits.
+     */
+    private void removeSkippedAttachments() {
+        for (Iterator<Map.Entry<String, Map<String, List<String>>>> classes = attachments.entrySet().iterator(); classes.hasNext(); ) {
+            Map.Entry<String, Map<String, List<String>>> tests = classes.next();
+            for (Iterator<Map.Entry<String, List<String>>> it = tests.getValue().entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, List<String>> test = it.next();
+                final FilePath dir = AttachmentPublisher.getAttachmentPath(attachmentsStorage, tests.getKey(), test.getKey());
+                test.getValue().removeIf(fileName -> transfer.isSkipped(dir.child(fileName)));
+                if (test.getValue().isEmpty()) {
+                    it.remove();
+                }
+            }
+            if (tests.getValue().isEmpty()) {
+                classes.remove();
+            }
+        }
+    }
+
+    /**
+     * Associates the files of the test class directory, if any, and its output with the test class,
+     * rather than an individual test case.
+     */
+    private void registerFilesForReport(String className, @CheckForNull List<String> files) {
+        if (files != null) {
+            Map<String, List<String>> tests = attachments.getOrDefault(className, new HashMap<String, List<String>>());
+            tests.put("", files);
+            attachments.put(className, tests);
+        }
+        registerStdInAndOut(className, getStdInAndOut(className));
+    }
+
+    /**
+     * Replaces the captured text attachments with compressed copies, see {@link TextAttachments#compress}.
+     */
+    private void compressTextAttachments(@CheckForNull ExecutorService executor) throws IOException, InterruptedException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (Map.Entry<String, Map<String, List<String>>> tests : attachments.entrySet()) {
+            for (Map.Entry<String, List<String>> test : tests.getValue().entrySet()) {
+                FilePath dir = AttachmentPublisher.getAttachmentPath(attachmentsStorage, tests.getKey(), test.getKey());
+                Path root = new File(dir.getRemote()).toPath();
+                for (String fileName : test.getValue()) {
+                    if (!TextAttachments.isText(fileName)) {
+                        continue;
+                    }
+                    // never compress, and so delete, anything outside of the storage
+                    final File file = AttachmentTransfer.resolve(root, fileName.replace(File.separatorChar, '/')).toFile();
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            TextAttachments.compress(file);
+                            return null;
+                        }
+                    });
+                }
+            }
+        }
+        long start = System.nanoTime();
+        runAll(executor, tasks);
+        statistics.record(CaptureStatistics.Phase.COMPRESSION, System.nanoTime() - start, tasks.size(), 0, 0);
+    }
+
+    /** Runs the given tasks on the executor, or on the current thread if there is none. */
+    private static void runAll(@CheckForNull ExecutorService executor, List<Callable<Void>> tasks)
             throws IOException, InterruptedException {
+        if (executor == null) {
+            for (Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (IOException | InterruptedException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+            return;
+        }
+        for (Future<Void> future : executor.invokeAll(tasks)) {
+            AttachmentTransfer.getResult(future);
+        }
+    }
+
+    private FilePath getStdInAndOut(String className) {
+        return AttachmentPublisher.getAttachmentPath(attachmentsStorage, className, null).child(getStdInAndOutName(className));
+    }
+
+    @SuppressFBWarnings(value = "NP_NULL_ON_SOME_PATH_FROM_RETURN_VALUE", justification = "TODO needs triage")
+    private void attachFilesForReport(final String className, final FilePath reportFile, final FilePath target) {
         final FilePath testDir = reportFile.getParent().child(className);
-        if (testDir.exists()) {
-            target.mkdirs();
-            if (testDir.copyRecursiveTo(target) > 0) {
-                DirectoryScanner d = new DirectoryScanner();
-                d.setBasedir(target.getRemote());
-                d.scan();
-
-                // Associate any included files with the test class, rather than an individual test case
-                Map<String, List<String>> tests = attachments.getOrDefault(className, new HashMap<String, List<String>>());
-                tests.put("", new ArrayList<String>(Arrays.asList(d.getIncludedFiles())));
-                attachments.put(className, tests);
+        transfer.addDirectory(testDir, target);
+    }
+
+    /**
+     * Lists the files copied from the test class directory, once the transfer has completed.
+     *
+     * @return the files, or {@code null} if the class has no directory of attachments
+     */
+    @CheckForNull
+    private List<String> scanFilesForReport(final String className) {
+        final FilePath target = AttachmentPublisher.getAttachmentPath(attachmentsStorage, className, null);
+        if (transfer.getTransferredCount(target) == 0) {
+            return null;
+        }
+
+        DirectoryScanner d = new DirectoryScanner();
+        d.setBasedir(target.getRemote());
+        d.scan();
+
+        List<String> files = new ArrayList<String>();
+        for (String file : d.getIncludedFiles()) {
+            if (settings.isStoreTextAttachmentsCompressed() && file.endsWith(TextAttachments.GZIP_SUFFIX)) {
+                // compressed by an earlier capture into the same storage, list it under its original name
+                String original = file.substring(0, file.length() - TextAttachments.GZIP_SUFFIX.length());
+                if (TextAttachments.isText(original)) {
+                    file = original;
+                }
+            }
+            if (!files.contains(file)) {
+                files.add(file);
             }
         }
+        FilePath stdInAndOut = getStdInAndOut(className);
+        if (transfer.getTransferredCount(stdInAndOut) > 0) {
+            // The stdout file was part of the same transfer, keep it last as it is registered on its own
+            files.remove(stdInAndOut.getName());
+        }
+        return files;
+    }
+
+    /**
+     * Lists the files to be copied from the test class directory, as found by {@link AttachmentTransfer#list}.
+     *
+     * @return the files, or {@code null} if the class has no directory of attachments
+     */
+    @CheckForNull
+    private List<String> listFilesForReport(final String className) {
+        final FilePath target = AttachmentPublisher.getAttachmentPath(attachmentsStorage, className, null);
+        List<String> files = transfer.getListedFiles(target);
+        if (files.isEmpty()) {
+            return null;
+        }
+        FilePath stdInAndOut = getStdInAndOut(className);
+        if (transfer.getTransferredCount(stdInAndOut) > 0) {
+            // The stdout file is part of the same transfer, keep it last as it is registered on its own
+            files.remove(stdInAndOut.getName());
+        }
+        return files;
     }
 
     /**
      * Creates a map of the all classNames to their corresponding result file.
      */
     private Map<String,String> getReports() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        selectTests();
         Map<String,String> reports = new HashMap<String, String>();
         for (SuiteResult suiteResult : testResult.getSuites()) {
             String f = suiteResult.getFile();
             if (f != null) {
                 for (String className : suiteResult.getClassNames()) {
-                    reports.put(className, f);
+                    if (isSelected(className, null)) {
+                        reports.put(className, f);
+                    }
+                }
+            }
+        }
+
+        statistics.record(CaptureStatistics.Phase.REPORTS, System.nanoTime() - start,
+                new HashSet<String>(reports.values()).size(), 0, 0);
+
+        start = System.nanoTime();
+        int trips = roundTrips;
+        if (settings.isScanReportsOnAgent()) {
+            findAttachmentsInReports(reports.values());
+            if (selectedTests != null) {
+                references.removeIf(reference -> !isSelected(reference.className, reference.testName));
+            }
+        } else {
+            findAttachmentsInResults();
+        }
+        statistics.record(CaptureStatistics.Phase.MARKERS, System.nanoTime() - start, references.size(), 0,
+                roundTrips - trips);
+
+        captureReferences();
+        return reports;
+    }
+
+    /**
+     * Determines the tests to capture attachments for, according to the {@link CapturePolicy}.
+     */
+    private void selectTests() {
+        CapturePolicy policy = settings.getCapturePolicy();
+        if (policy == CapturePolicy.ALL) {
+            return;
+        }
+        selectedClasses = new HashSet<String>();
+        selectedTests = new HashSet<String>();
+        int total = 0;
+        for (SuiteResult suiteResult : testResult.getSuites()) {
+            for (CaseResult cr : suiteResult.getCases()) {
+                total++;
+                if (policy.captures(cr, settings.getPreviousFailureBuilds())) {
+                    selectedClasses.add(cr.getClassName());
+                    selectedTests.add(getTestKey(cr.getClassName(), cr.getName()));
                 }
             }
+        }
+        listener.getLogger().println("Capturing attachments of " + selectedTests.size() + " of " + total + " tests.");
+    }
+
+    /**
+     * Whether attachments are captured for the given test, or for any test of the given class if the test is {@code null}.
+     */
+    private boolean isSelected(String className, @CheckForNull String testName) {
+        if (selectedTests == null) {
+            return true;
+        }
+        return testName == null ? selectedClasses.contains(className) : selectedTests.contains(getTestKey(className, testName));
+    }
+
+    private static String getTestKey(String className, String testName) {
+        return className + '\u0000' + testName;
+    }
 
+    /**
+     * Finds attachments in the stdout/stderr held by the parsed test results.
+     */
+    private void findAttachmentsInResults() {
+        for (SuiteResult suiteResult : testResult.getSuites()) {
+            boolean suiteSelected = selectedTests == null;
             // Due to the way that CaseResult.getStd(out|err) works, we need to compare each test
             // cases's output with the test suite's output to determine if its output is unique
-            String suiteStdout = Util.fixNull(suiteResult.getStdout());
-            String suiteStderr = Util.fixNull(suiteResult.getStderr());
+            SuiteOutput suiteStdout = new SuiteOutput(suiteResult.getStdout());
+            SuiteOutput suiteStderr = new SuiteOutput(suiteResult.getStderr());
 
             for (CaseResult cr : suiteResult.getCases()) {
+                if (!isSelected(cr.getClassName(), cr.getName())) {
+                    continue;
+                }
+                suiteSelected = true;
                 String stdout = Util.fixNull(cr.getStdout());
-                String caseStdout = suiteStdout.equals(stdout) ? null : stdout;
+                if (!suiteStdout.isSharedBy(stdout)) {
+                    findAttachmentsInOutput(cr.getClassName(), cr.getName(), stdout);
+                }
 
                 String stderr = Util.fixNull(cr.getStderr());
-                String caseStderr = suiteStderr.equals(stderr) ? null : stderr;
-
-                // Add a newline so that we detect attachments if stdout has no trailing newline
-                // and stderr is null (as otherwise we'd try and parse "[[ATTACHMENT|foo]]null")
-                findAttachmentsInOutput(cr.getClassName(), cr.getName(), caseStdout + "\n" + caseStderr);
+                if (!suiteStderr.isSharedBy(stderr)) {
+                    findAttachmentsInOutput(cr.getClassName(), cr.getName(), stderr);
+                }
             }
 
             // Capture stdout and stderr for the testsuite as a whole, if they exist
-            findAttachmentsInOutput(suiteResult.getName(), null, suiteStdout);
-            findAttachmentsInOutput(suiteResult.getName(), null, suiteStderr);
+            if (suiteSelected) {
+                findAttachmentsInOutput(suiteResult.getName(), null, suiteStdout.output);
+                findAttachmentsInOutput(suiteResult.getName(), null, suiteStderr.output);
+            }
+        }
+    }
+
+    /**
+     * The stdout or stderr of a suite, which {@code CaseResult} hands out for test cases without output of their own.
+     * <p>
+     * Suite output can be huge and shared by thousands of cases, so comparing it in full for every case is avoided:
+     * the case output is usually the very same string instance, and otherwise the lengths or a few sampled
+     * characters usually differ. Copies that did turn out to be equal are remembered by identity.
+     */
+    static final class SuiteOutput {
+        final String output;
+        private final Set<String> copies = Collections.newSetFromMap(new IdentityHashMap<String, Boolean>());
+        /** Number of case outputs that had to be compared in full, for tests. */
+        int comparisons;
+
+        SuiteOutput(String output) {
+            this.output = Util.fixNull(output);
+        }
+
+        /** Whether the given case output is just the output of this suite. */
+        boolean isSharedBy(String caseOutput) {
+            if (caseOutput == output || copies.contains(caseOutput)) {
+                return true;
+            }
+            int length = output.length();
+            if (caseOutput.length() != length) {
+                return false;
+            }
+            if (length > 0 && (caseOutput.charAt(0) != output.charAt(0)
+                    || caseOutput.charAt(length / 2) != output.charAt(length / 2)
+                    || caseOutput.charAt(length - 1) != output.charAt(length - 1))) {
+                return false;
+            }
+            comparisons++;
+            if (caseOutput.equals(output)) {
+                copies.add(caseOutput);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Finds attachments by streaming the raw report files on the agent,
+     * so that the test output never has to be held on the controller.
+     */
+    private void findAttachmentsInReports(Collection<String> reportFiles) throws IOException, InterruptedException {
+        Set<String> files = new LinkedHashSet<String>();
+        for (String reportFile : reportFiles) {
+            files.add(workspace.child(reportFile).getRemote());
+        }
+        if (!files.isEmpty()) {
+            countRoundTrip();
+            references.addAll(workspace.act(new ReportScanner(files)));
         }
-        return reports;
     }
 
     /**
      * Finds attachments from a test's stdout/stderr, i.e. instances of:
      * <pre>[[ATTACHMENT|/path/to/attached-file.xyz|...reserved...]]</pre>
      */
-    private void findAttachmentsInOutput(String className, String testName, String output) throws IOException, InterruptedException {
-        if (Util.fixEmpty(output) == null) {
-            return;
+    private void findAttachmentsInOutput(String className, String testName, String output) {
+        for (String path : AttachmentMarkerScanner.findPaths(output)) {
+            references.add(new AttachmentReference(className, testName, path));
         }
+    }
 
-        Matcher matcher = ATTACHMENT_PATTERN.matcher(output);
-        while (matcher.find()) {
-            String line = matcher.group().trim(); // Be more tolerant about where ATTACHMENT lines start/end
-            // compute the file name
-            line = line.substring(PREFIX.length(), line.length() - SUFFIX.length());
-            int idx = line.indexOf('|');
-            if (idx >= 0) {
-                line = line.substring(0, idx);
-            }
+    /**
+     * Resolves all the paths referenced from the test output on the agent at once,
+     * then captures those that exist in the order they were referenced.
+     */
+    private void captureReferences() throws IOException, InterruptedException {
+        if (references.isEmpty()) {
+            return;
+        }
 
-            String fileName = line;
-            if (fileName != null) {
-                FilePath src = workspace.child(fileName); // even though we use child(), this should be absolute
-                if (src.isDirectory()) {
-                    listener.getLogger().println("Attachment " + fileName + " was referenced from the test '" + className + "' but it is a directory, not a file. Skipping.");
-                } else if (src.exists()) {
-                    captureAttachment(className, testName, src);
-                } else {
-                    listener.getLogger().println("Attachment "+fileName+" was referenced from the test '"+className+"' but it doesn't exist. Skipping.");
-                }
+        long start = System.nanoTime();
+        int trips = roundTrips;
+        List<String> paths = new ArrayList<String>(references.size());
+        for (AttachmentReference reference : references) {
+            paths.add(workspace.child(reference.path).getRemote()); // even though we use child(), this should be absolute
+        }
+        countRoundTrip();
+        Map<String, AttachmentManifest.FileInfo> manifest = workspace.act(new AttachmentManifest(paths));
+        statistics.record(CaptureStatistics.Phase.EXISTENCE, System.nanoTime() - start, paths.size(), 0,
+                roundTrips - trips);
+
+        for (AttachmentReference reference : references) {
+            String fileName = reference.path;
+            FilePath src = workspace.child(fileName);
+            AttachmentManifest.FileInfo info = manifest.getOrDefault(src.getRemote(), AttachmentManifest.FileInfo.MISSING);
+            if (info.kind == AttachmentManifest.Kind.DIRECTORY) {
+                listener.getLogger().println("Attachment " + fileName + " was referenced from the test '" + reference.className + "' but it is a directory, not a file. Skipping.");
+            } else if (info.kind == AttachmentManifest.Kind.FILE) {
+                captureAttachment(reference.className, reference.testName, src);
+            } else {
+                listener.getLogger().println("Attachment "+fileName+" was referenced from the test '"+reference.className+"' but it doesn't exist. Skipping.");
             }
         }
+        references.clear();
     }
 
-    private static final String PREFIX = "[[ATTACHMENT|";
-    private static final String SUFFIX = "]]";
-    private static final Pattern ATTACHMENT_PATTERN = Pattern.compile("\\[\\[ATTACHMENT\\|.+\\]\\]");
+    private void countRoundTrip() {
+        if (workspace.isRemote()) {
+            roundTrips++;
+        }
+    }
 
     @SuppressFBWarnings(value = "NP_NULL_ON_SOME_PATH_FROM_RETURN_VALUE", justification = "TODO needs triage")
-    private void attachStdInAndOut(String className, FilePath reportFile)
-            throws IOException, InterruptedException {
-        final FilePath stdInAndOut = reportFile.getParent().child(
-                className + "-output.txt");
-        LOG.fine("stdInAndOut: " + stdInAndOut.absolutize());
-        if (stdInAndOut.exists()) {
-            captureAttachment(className, stdInAndOut);
+    private void attachStdInAndOut(String className, FilePath reportFile, FilePath target) {
+        final FilePath stdInAndOut = reportFile.getParent().child(getStdInAndOutName(className));
+        LOG.fine("stdInAndOut: " + stdInAndOut);
+        transfer.addFile(stdInAndOut, target.child(stdInAndOut.getName()));
+    }
+
+    private void registerStdInAndOut(String className, FilePath stdInAndOut) {
+        if (transfer.getTransferredCount(stdInAndOut) > 0) {
+            getTestFiles(className, null).add(stdInAndOut.getName());
         }
     }
 
+    private static String getStdInAndOutName(String className) {
+        return className + "-output.txt";
+    }
+
     /**
-     * Captures a single file as an attachment by copying it and recording it.
+     * Captures a single file as an attachment by recording it and scheduling it to be copied.
      *
      * @param src
      *      File on the build workspace to be copied back to the controller and captured.
      */
-    private void captureAttachment(String className, FilePath src) throws IOException, InterruptedException {
-        captureAttachment(className, null, src);
+    private void captureAttachment(String className, String testName, FilePath src) {
+        List<String> testFiles = getTestFiles(className, testName);
+
+        String filename = src.getName();
+        if (!testFiles.contains(filename)) {
+            // Only need to copy the file if it hasn't already been handled for this test class
+            FilePath target = AttachmentPublisher.getAttachmentPath(attachmentsStorage, className, testName);
+            transfer.addFile(src, new FilePath(target, filename));
+            testFiles.add(filename);
+        }
     }
 
-    private void captureAttachment(String className, String testName, FilePath src) throws IOException, InterruptedException {
+    private List<String> getTestFiles(String className, String testName) {
         Map<String, List<String>> tests = attachments.get(className);
         if (tests == null) {
             tests = new HashMap<String, List<String>>();
@@ -261,16 +762,7 @@ public class GetTestDataMethodObject {
             testFiles = new ArrayList<String>();
             tests.put(Util.fixNull(testName), testFiles);
         }
-
-        String filename = src.getName();
-        if (!testFiles.contains(filename)) {
-            // Only need to copy the file if it hasn't already been handled for this test class
-            FilePath target = AttachmentPublisher.getAttachmentPath(attachmentsStorage, className, testName);
-            target.mkdirs();
-            FilePath dst = new FilePath(target, filename);
-            src.copyTo(dst);
-            testFiles.add(filename);
-        }
+        return testFiles;
     }
 
     /** Determines whether the given mapping for a test class contains a certain filename. */
@@ -0,0 +1,172 @@
+package hudson.plugins.junitattachments;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streams JUnit report files on the agent and returns the attachments referenced from their
+ * {@code system-out}/{@code system-err} elements, so the test output never has to be sent to the controller.
+ * <p>
+ * Class and test names are derived from the XML the same way the junit plugin derives them, so that the references
+ * match the {@code CaseResult}s the controller sees.
+ */
+final class ReportScanner extends MasterToSlaveFileCallable<List<AttachmentReference>> {
+    private static final long serialVersionUID = 1L;
+
+    /** Remote paths of the report files to scan. */
+    private final Set<String> reportFiles;
+
+    ReportScanner(Set<String> reportFiles) {
+        this.reportFiles = new LinkedHashSet<String>(reportFiles);
+    }
+
+    @Override
+    public List<AttachmentReference> invoke(File workspace, VirtualChannel channel) throws IOException {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        List<AttachmentReference> references = new ArrayList<AttachmentReference>();
+        for (String reportFile : reportFiles) {
+            File file = new File(reportFile);
+            if (!file.isFile()) {
+                continue;
+            }
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                XMLStreamReader reader = factory.createXMLStreamReader(in);
+                try {
+                    scan(file, reader, references);
+                } finally {
+                    reader.close();
+                }
+            } catch (XMLStreamException e) {
+                throw new IOException("Failed to parse " + file, e);
+            }
+        }
+        return references;
+    }
+
+    private static void scan(File file, XMLStreamReader reader, List<AttachmentReference> references)
+            throws XMLStreamException {
+        Deque<Scope> suites = new ArrayDeque<Scope>();
+        Scope testCase = null;
+        Collector collector = new Collector();
+        AttachmentMarkerScanner scanner = new AttachmentMarkerScanner(collector);
+        int depth = 0;
+        int textDepth = -1;
+
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    String element = reader.getLocalName();
+                    if (element.equals("testsuite")) {
+                        suites.push(new Scope(getSuiteName(file, reader), null, depth));
+                    } else if (element.equals("testcase") && testCase == null) {
+                        String suiteName = suites.isEmpty() ? null : suites.peek().className;
+                        String className = reader.getAttributeValue(null, "classname");
+                        testCase = new Scope(className == null ? suiteName : className,
+                                reader.getAttributeValue(null, "name"), depth);
+                    } else if (textDepth < 0 && (element.equals("system-out") || element.equals("system-err"))) {
+                        // Only the output directly below a test case or test suite counts,
+                        // not e.g. the output of reruns nested in <flakyFailure>
+                        Scope owner = testCase != null ? testCase : suites.peek();
+                        if (owner != null && owner.depth == depth - 1) {
+                            collector.paths = element.equals("system-err") ? owner.stderr : owner.stdout;
+                            scanner.reset();
+                            textDepth = depth;
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (textDepth >= 0) {
+                        // the text is handed over in chunks, so large output is never held in memory as a whole
+                        scanner.feed(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (depth == textDepth) {
+                        collector.paths = null;
+                        textDepth = -1;
+                    } else if (testCase != null && depth == testCase.depth) {
+                        testCase.addTo(references);
+                        testCase = null;
+                    } else if (!suites.isEmpty() && depth == suites.peek().depth) {
+                        suites.pop().addTo(references);
+                    }
+                    depth--;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /** Same as the name the junit plugin gives to a {@code SuiteResult}. */
+    private static String getSuiteName(File file, XMLStreamReader reader) {
+        String name = reader.getAttributeValue(null, "name");
+        if (name == null) {
+            return '(' + file.getName() + ')';
+        }
+        String pkg = reader.getAttributeValue(null, "package");
+        if (pkg != null && !pkg.isEmpty()) {
+            return pkg + '.' + name;
+        }
+        return name;
+    }
+
+    /** Collects the markers of the output element being scanned into the list of its scope. */
+    private static final class Collector implements AttachmentMarkerScanner.Sink {
+        List<String> paths;
+
+        @Override
+        public void onMarker(String path, long start, long end) {
+            paths.add(path);
+        }
+    }
+
+    /** A test suite or test case, along with the attachments found in its output. */
+    private static final class Scope {
+        final String className;
+        final String testName;
+        final int depth;
+        final List<String> stdout = new ArrayList<String>();
+        final List<String> stderr = new ArrayList<String>();
+
+        Scope(String className, String testName, int depth) {
+            this.className = className;
+            this.testName = testName;
+            this.depth = depth;
+        }
+
+        /** Adds the references of this scope, stdout first, just like the controller-side scan. */
+        void addTo(List<AttachmentReference> references) {
+            if (className == null) {
+                return;
+            }
+            for (String path : stdout) {
+                references.add(new AttachmentReference(className, testName, path));
+            }
+            for (String path : stderr) {
+                references.add(new AttachmentReference(className, testName, path));
+            }
+        }
+    }
+}
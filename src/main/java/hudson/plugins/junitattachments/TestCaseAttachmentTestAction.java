@@ -4,16 +4,24 @@ import hudson.FilePath;
 import hudson.Util;
 import hudson.tasks.junit.CaseResult;
 import jenkins.model.Jenkins;
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest2;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 public class TestCaseAttachmentTestAction extends AttachmentTestAction {
 
-    private static final Pattern ATTACHMENT_PATTERN = Pattern.compile("\\[\\[ATTACHMENT\\|.+]]");
+    private static final String ROOT_URL_ATTRIBUTE = TestCaseAttachmentTestAction.class.getName() + ".rootUrl";
+
+    private static final String LINKIFIERS_ATTRIBUTE = TestCaseAttachmentTestAction.class.getName() + ".linkifiers";
 
     private final List<String> attachments;
     private final boolean showAttachmentsInStdOut;
+    /** Looked up on first use, as only test pages annotate anything, see {@link #getLinkifier()}. */
+    private transient volatile AttachmentLinkifier linkifier;
 
     public TestCaseAttachmentTestAction(
             CaseResult caseResult, FilePath storage, List<String> attachments, boolean showAttachmentsInStdOut) {
@@ -27,20 +35,67 @@ public class TestCaseAttachmentTestAction extends AttachmentTestAction {
         return attachments;
     }
 
+    @Override
+    protected Collection<String> getArchivedAttachments() {
+        return attachments;
+    }
+
     @Override
     public String annotate(String text) {
 
         if (!showAttachmentsInStdOut) {
-            text = ATTACHMENT_PATTERN.matcher(text).replaceAll("").stripTrailing();
+            text = AttachmentMarkerScanner.removeMarkers(text).stripTrailing();
+        }
+
+        if (attachments.isEmpty()) {
+            return text;
         }
+        String url = getRootUrl() + testObject.getUrl() + "/attachments/";
+        return getLinkifier().linkify(text, url);
+    }
 
-        String url = Jenkins.get().getRootUrl() + testObject.getUrl() + "/attachments/";
-        for (String attachment : attachments) {
-            text = text.replace(attachment, "<a href=\"" + url + attachment
-                    + "\">" + attachment + "</a>");
+    /**
+     * Returns the linkifier of the attachments, building it once per request: a test page annotates
+     * the standard output, the standard error and the stack trace of a test, each through a new instance
+     * of this action, see {@link AttachmentPublisher.Data#getTestAction}.
+     */
+    private AttachmentLinkifier getLinkifier() {
+        AttachmentLinkifier linkifier = this.linkifier;
+        if (linkifier != null) {
+            return linkifier;
+        }
+        StaplerRequest2 req = Stapler.getCurrentRequest2();
+        if (req == null) {
+            linkifier = new AttachmentLinkifier(attachments);
+        } else {
+            @SuppressWarnings("unchecked")
+            Map<List<String>, AttachmentLinkifier> linkifiers = (Map<List<String>, AttachmentLinkifier>) req.getAttribute(LINKIFIERS_ATTRIBUTE);
+            if (linkifiers == null) {
+                linkifiers = new HashMap<List<String>, AttachmentLinkifier>();
+                req.setAttribute(LINKIFIERS_ATTRIBUTE, linkifiers);
+            }
+            // the same attachments are linked the same way, whichever test they belong to
+            linkifier = linkifiers.computeIfAbsent(attachments, AttachmentLinkifier::new);
         }
+        // the worst that can happen is that two threads both build one
+        this.linkifier = linkifier;
+        return linkifier;
+    }
 
-        return text;
+    /**
+     * Returns the root URL, looking it up only once per request, as a test page annotates several outputs.
+     */
+    private static String getRootUrl() {
+        StaplerRequest2 req = Stapler.getCurrentRequest2();
+        if (req == null) {
+            return Jenkins.get().getRootUrl();
+        }
+        String url = (String) req.getAttribute(ROOT_URL_ATTRIBUTE);
+        if (url == null) {
+            url = Jenkins.get().getRootUrl();
+            req.setAttribute(ROOT_URL_ATTRIBUTE, url);
+        }
+        return url;
     }
 
     public static String getUrl(String filename) {
@@ -1,14 +1,28 @@
 package hudson.plugins.junitattachments;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.FilePath;
 import hudson.Util;
 import hudson.tasks.junit.ClassResult;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.verb.GET;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 public class TestClassAttachmentTestAction extends AttachmentTestAction {
 
+    /** Number of attachments rendered on the class page before the user pages through them. */
+    public static final int PAGE_SIZE = 100;
+
+    private static final int MAX_PAGE_SIZE = 1000;
+
     private final Map<String, List<String>> attachments;
     private final boolean attachmentsStoredAtClassLevel;
     private final List<String> blocks;
@@ -46,4 +60,159 @@ public class TestClassAttachmentTestAction extends AttachmentTestAction {
 
         return getUrlName() + "/" + Util.rawEncode(testCase) + "/" + Util.rawEncode(filename);
     }
+
+    public String getThumbnailUrl(String testCase, String filename) {
+        if (this.attachmentsStoredAtClassLevel) {
+            return getUrlName() + "/" + ENDPOINTS + "/thumbnail/" + Util.rawEncode(filename);
+        }
+
+        return getUrlName() + "/" + ENDPOINTS + "/thumbnail/" + Util.rawEncode(testCase) + "/" + Util.rawEncode(filename);
+    }
+
+    /**
+     * Returns the attachments matching the given filters, a page at a time, in the order of {@link #getAttachments()}.
+     *
+     * @param test only attachments of tests whose name contains this, ignoring case
+     * @param file only attachments whose file name contains this, ignoring case
+     * @param type {@code image}, {@code text} or {@code other} for only attachments of that type
+     */
+    public Page getPage(@CheckForNull String test, @CheckForNull String file, @CheckForNull String type, int offset, int limit) {
+        offset = Math.max(0, offset);
+        limit = Math.max(1, Math.min(MAX_PAGE_SIZE, limit));
+        String testFilter = normalizeFilter(test);
+        String fileFilter = normalizeFilter(file);
+        String typeFilter = normalizeFilter(type);
+
+        List<Row> rows = new ArrayList<Row>(Math.min(limit, 64));
+        int total = 0;
+        for (Map.Entry<String, List<String>> entry : attachments.entrySet()) {
+            if (testFilter != null && !entry.getKey().toLowerCase(Locale.ENGLISH).contains(testFilter)) {
+                continue;
+            }
+            for (String f : entry.getValue()) {
+                if (fileFilter != null && !f.toLowerCase(Locale.ENGLISH).contains(fileFilter)) {
+                    continue;
+                }
+                if (typeFilter != null && !typeFilter.equals(getType(f))) {
+                    continue;
+                }
+                if (total >= offset && rows.size() < limit) {
+                    rows.add(new Row(entry.getKey(), f));
+                }
+                total++;
+            }
+        }
+        return new Page(rows, offset, limit, total);
+    }
+
+    /**
+     * Returns the first page of all attachments, which the class page renders up front.
+     */
+    public Page getFirstPage() {
+        return getPage(null, null, null, 0, PAGE_SIZE);
+    }
+
+    @CheckForNull
+    private static String normalizeFilter(@CheckForNull String filter) {
+        if (filter == null || filter.trim().isEmpty()) {
+            return null;
+        }
+        return filter.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    private static String getType(String file) {
+        if (isImageFile(file)) {
+            return "image";
+        }
+        return TextAttachments.isText(file) ? "text" : "other";
+    }
+
+    /**
+     * An attachment of a test.
+     */
+    public static final class Row {
+        private final String test;
+        private final String file;
+
+        Row(String test, String file) {
+            this.test = test;
+            this.file = file;
+        }
+
+        public String getTest() {
+            return test;
+        }
+
+        public String getFile() {
+            return file;
+        }
+    }
+
+    /**
+     * A page of the attachments matching some filters.
+     */
+    public static final class Page {
+        private final List<Row> rows;
+        private final int offset;
+        private final int limit;
+        private final int total;
+
+        Page(List<Row> rows, int offset, int limit, int total) {
+            this.rows = rows;
+            this.offset = offset;
+            this.limit = limit;
+            this.total = total;
+        }
+
+        public List<Row> getRows() {
+            return rows;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        /** Maximum number of rows of the page. */
+        public int getLimit() {
+            return limit;
+        }
+
+        /** Number of all attachments matching the filters. */
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    @Override
+    protected Endpoints createEndpoints() {
+        return new ClassEndpoints();
+    }
+
+    /** Also serves the rows of the attachments table on the class page. */
+    public class ClassEndpoints extends Endpoints {
+
+        /**
+         * Serves a page of {@link #getPage} as JSON, for the table on the class page.
+         */
+        @GET
+        public HttpResponse doRows(@QueryParameter String test, @QueryParameter String file, @QueryParameter String type,
+                                   @QueryParameter int offset, @QueryParameter int limit) {
+            Page page = getPage(test, file, type, offset, limit > 0 ? limit : PAGE_SIZE);
+            JSONArray rows = new JSONArray();
+            for (Row row : page.getRows()) {
+                JSONObject o = new JSONObject()
+                        .element("test", row.getTest())
+                        .element("file", row.getFile())
+                        .element("url", getUrl(row.getTest(), row.getFile()));
+                if (isImageFile(row.getFile())) {
+                    o.element("thumbnailUrl", getThumbnailUrl(row.getTest(), row.getFile()));
+                }
+                rows.element(o);
+            }
+            return HttpResponses.okJSON(new JSONObject()
+                    .element("offset", page.getOffset())
+                    .element("total", page.getTotal())
+                    .element("rows", rows));
+        }
+    }
 }
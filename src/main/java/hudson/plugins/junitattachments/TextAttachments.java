@@ -0,0 +1,101 @@
+package hudson.plugins.junitattachments;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tells attachments that are text, and so compress well, from binary ones that are typically compressed already,
+ * and stores text attachments compressed when asked to.
+ */
+final class TextAttachments {
+
+    private static final Set<String> EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "txt", "log", "out", "err", "json", "xml", "html", "htm", "xhtml", "csv", "tsv", "har", "yaml", "yml",
+            "properties", "js", "css", "svg", "md", "trace"));
+
+    /** Formats that are compressed already, so compressing them again only costs time. */
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "png", "jpg", "jpeg", "gif", "webp", "zip", "jar", "gz", "tgz", "bz2", "xz", "7z",
+            "mp4", "webm", "mov", "mkv", "avi"));
+
+    /** Suffix of text attachments that are stored compressed. */
+    static final String GZIP_SUFFIX = ".gz";
+
+    /** Smaller files are not worth compressing. */
+    private static final long MIN_COMPRESSED_SIZE = 4096;
+
+    private TextAttachments() {
+    }
+
+    /**
+     * Whether a file with the given name is a text file, judging by its extension.
+     */
+    static boolean isText(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0 || dot == fileName.length() - 1) {
+            return false;
+        }
+        return EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Whether a file with the given name is compressed already, judging by its extension.
+     */
+    static boolean isCompressed(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0 || dot == fileName.length() - 1) {
+            return false;
+        }
+        return COMPRESSED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Replaces the given file with a gzip-compressed copy named after it with {@link #GZIP_SUFFIX} appended,
+     * keeping its modification time. Small files are left as they are, and so are files that are hard-linked
+     * from elsewhere, such as the job's store of deduplicated attachments, as a compressed copy would take up
+     * additional space instead of saving some.
+     */
+    static void compress(File file) throws IOException {
+        Path src = file.toPath();
+        if (!Files.isRegularFile(src) || Files.size(src) < MIN_COMPRESSED_SIZE || isLinked(src)) {
+            return;
+        }
+        Path dst = src.resolveSibling(src.getFileName() + GZIP_SUFFIX);
+        Path tmp = Files.createTempFile(src.getParent(), src.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+                Files.copy(src, out);
+            }
+            Files.setLastModifiedTime(tmp, Files.getLastModifiedTime(src));
+            Files.move(tmp, dst, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        Files.delete(src);
+    }
+
+    private static boolean isLinked(Path file) throws IOException {
+        try {
+            return (Integer) Files.getAttribute(file, "unix:nlink") > 1;
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // no link counts on this platform
+            return false;
+        }
+    }
+
+    /**
+     * Returns the compressed form of the given attachment, if that is how it is stored.
+     */
+    static File getCompressed(File file) {
+        return new File(file.getPath() + GZIP_SUFFIX);
+    }
+}
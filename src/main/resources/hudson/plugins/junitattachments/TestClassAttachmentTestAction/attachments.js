@@ -0,0 +1,99 @@
+/*
+ * Pages through and filters the attachments of a test class, fetching one page at a time from the server.
+ * The first page is rendered by summary.jelly, so the table works without JavaScript too.
+ */
+Behaviour.specify(".junit-attachments", "junit-attachments", 0, function (container) {
+  const tbody = container.querySelector("tbody");
+  const info = container.querySelector(".junit-attachments-info");
+  const previous = container.querySelector("[data-page=previous]");
+  const next = container.querySelector("[data-page=next]");
+  const filters = container.querySelectorAll("[data-filter]");
+  const pageSize = Math.max(1, parseInt(container.dataset.pageSize, 10) || 100);
+  let offset = 0;
+  let total = parseInt(container.dataset.total, 10) || 0;
+  let request = 0;
+  let timer = null;
+
+  function renderRow(row) {
+    const tr = document.createElement("tr");
+    const test = document.createElement("td");
+    test.textContent = row.test;
+    const file = document.createElement("td");
+    const a = document.createElement("a");
+    a.href = row.url;
+    a.title = row.url;
+    if (row.thumbnailUrl) {
+      a.className = "gallery";
+      const img = document.createElement("img");
+      img.src = row.thumbnailUrl;
+      img.alt = "";
+      img.loading = "lazy";
+      img.decoding = "async";
+      img.style.display = "block";
+      img.style.maxWidth = "200px";
+      img.style.maxHeight = "200px";
+      a.appendChild(img);
+    }
+    a.appendChild(document.createTextNode(row.file));
+    file.appendChild(a);
+    tr.append(test, file);
+    return tr;
+  }
+
+  function updateControls() {
+    const shown = tbody.rows.length;
+    info.textContent = shown === 0 ? "0 / " + total : offset + 1 + "–" + (offset + shown) + " / " + total;
+    previous.disabled = offset === 0;
+    next.disabled = offset + pageSize >= total;
+  }
+
+  function load() {
+    const params = new URLSearchParams({ offset: offset, limit: pageSize });
+    filters.forEach(function (filter) {
+      if (filter.value) {
+        params.set(filter.dataset.filter, filter.value);
+      }
+    });
+    const current = ++request;
+    fetch(container.dataset.rowsUrl + "?" + params)
+      .then(function (rsp) {
+        return rsp.ok ? rsp.json() : Promise.reject(new Error(rsp.statusText));
+      })
+      .then(function (json) {
+        if (current !== request) {
+          // a later request superseded this one
+          return;
+        }
+        offset = json.data.offset;
+        total = json.data.total;
+        tbody.replaceChildren.apply(tbody, json.data.rows.map(renderRow));
+        updateControls();
+      })
+      .catch(function (e) {
+        console.warn("Failed to load attachments", e);
+      });
+  }
+
+  previous.addEventListener("click", function () {
+    offset = Math.max(0, offset - pageSize);
+    load();
+  });
+  next.addEventListener("click", function () {
+    offset += pageSize;
+    load();
+  });
+  filters.forEach(function (filter) {
+    filter.addEventListener(filter.tagName === "SELECT" ? "change" : "input", function () {
+      clearTimeout(timer);
+      timer = setTimeout(function () {
+        offset = 0;
+        load();
+      }, 250);
+    });
+  });
+
+  container.querySelector(".junit-attachments-filters").classList.remove("jenkins-hidden");
+  previous.classList.remove("jenkins-hidden");
+  next.classList.remove("jenkins-hidden");
+  updateControls();
+});
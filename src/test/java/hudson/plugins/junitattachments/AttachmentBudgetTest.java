@@ -0,0 +1,87 @@
+package hudson.plugins.junitattachments;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class AttachmentBudgetTest {
+
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    void testSkipsFilesExceedingTheLimitPerFile() {
+        AttachmentBudget budget = new AttachmentBudget(10 * MB, 0, 0, 0, false);
+        assertEquals(5 * MB, budget.admit("A/t/small.png", "A", "A/t", 5 * MB));
+        assertEquals(-1, budget.admit("A/t/heap.hprof", "A", "A/t", 20 * 1024 * MB));
+        assertEquals(10 * MB, budget.admit("A/t/exact.png", "A", "A/t", 10 * MB));
+        assertEquals(1, budget.getSkippedCount());
+    }
+
+    @Test
+    void testChargesFilesAgainstTestClassAndBuild() {
+        AttachmentBudget budget = new AttachmentBudget(0, 3 * MB, 5 * MB, 8 * MB, false);
+        assertEquals(2 * MB, budget.admit("A/t1/a.png", "A", "A/t1", 2 * MB));
+        // only 1 MB left for this test
+        assertEquals(-1, budget.admit("A/t1/b.png", "A", "A/t1", 2 * MB));
+        assertEquals(2 * MB, budget.admit("A/t2/b.png", "A", "A/t2", 2 * MB));
+        // only 1 MB left for this class, and class level files are not charged against a test
+        assertEquals(-1, budget.admit("A/output.png", "A", null, 2 * MB));
+        assertEquals(MB, budget.admit("A/output.png", "A", null, MB));
+        assertEquals(3 * MB, budget.admit("B/t/c.png", "B", "B/t", 3 * MB));
+        // only 0 MB left for this build
+        assertEquals(-1, budget.admit("C/t/d.png", "C", "C/t", 1));
+        assertEquals(3, budget.getSkippedCount());
+    }
+
+    @Test
+    void testTruncatesTextFiles() {
+        AttachmentBudget budget = new AttachmentBudget(MB, 0, 0, 0, true);
+        assertEquals(MB, budget.admit("A/t/huge.log", "A", "A/t", 100 * MB));
+        // binary files cannot be truncated
+        assertEquals(-1, budget.admit("A/t/huge.png", "A", "A/t", 100 * MB));
+        assertEquals(1, budget.getTruncatedCount());
+        assertEquals(1, budget.getSkippedCount());
+    }
+
+    @Test
+    void testSkipsTextFilesTooBigForAUsefulTruncatedCopy() {
+        AttachmentBudget budget = new AttachmentBudget(0, 0, 0, MB, true);
+        assertEquals(MB - 100, budget.admit("A/t/a.log", "A", "A/t", MB - 100));
+        assertEquals(-1, budget.admit("A/t/b.log", "A", "A/t", MB));
+        assertEquals(0, budget.getTruncatedCount());
+    }
+
+    @Test
+    void testSummarizesSkippedAndTruncatedFiles() {
+        AttachmentBudget budget = new AttachmentBudget(MB, 0, 0, 0, true);
+        for (int i = 0; i < 25; i++) {
+            budget.admit("A/t/core" + i, "A", "A/t", 2 * MB);
+        }
+        budget.admit("A/t/out.txt", "A", "A/t", 2 * MB);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        budget.printSummary(new PrintStream(out, true, StandardCharsets.UTF_8));
+        String summary = out.toString(StandardCharsets.UTF_8);
+        assertTrue(summary.contains("Skipped 25 attachment files"), summary);
+        assertTrue(summary.contains("A/t/core0 "), summary);
+        assertFalse(summary.contains("A/t/core24 "), summary);
+        assertTrue(summary.contains("... and 5 more"), summary);
+        assertTrue(summary.contains("A/t/out.txt"), summary);
+    }
+
+    @Test
+    void testPrintsNothingWithinTheLimits() {
+        AttachmentBudget budget = new AttachmentBudget(MB, MB, MB, MB, true);
+        budget.admit("A/t/a.png", "A", "A/t", 100);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        budget.printSummary(new PrintStream(out, true, StandardCharsets.UTF_8));
+        assertEquals("", out.toString(StandardCharsets.UTF_8));
+    }
+}
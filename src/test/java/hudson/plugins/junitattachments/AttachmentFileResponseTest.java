@@ -0,0 +1,136 @@
+package hudson.plugins.junitattachments;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.FilePath;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AttachmentFileResponseTest {
+
+    @TempDir
+    Path tmp;
+
+    private Path storage;
+
+    @BeforeEach
+    void createStorage() throws Exception {
+        storage = Files.createDirectories(tmp.resolve("junit-attachments"));
+    }
+
+    @Test
+    void testTextAttachmentIsStoredCompressed() throws Exception {
+        Path dir = Files.createDirectories(storage.resolve("com.example.FooTest"));
+        Path log = dir.resolve("com.example.FooTest-output.txt");
+        String content = "line of output\n".repeat(1000);
+        Files.writeString(log, content);
+
+        TextAttachments.compress(log.toFile());
+
+        assertFalse(Files.exists(log));
+        Path compressed = dir.resolve("com.example.FooTest-output.txt.gz");
+        assertTrue(Files.size(compressed) < content.length());
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(compressed))) {
+            assertEquals(content, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+
+        FilePath root = new FilePath(storage.toFile());
+        assertNotNull(AttachmentFileResponse.forAttachment(root, "/com.example.FooTest/com.example.FooTest-output.txt", true));
+        assertNull(AttachmentFileResponse.forAttachment(root, "/com.example.FooTest/other.txt", true));
+        assertNull(AttachmentFileResponse.forAttachment(root, "/com.example.FooTest/", true));
+        assertNull(AttachmentFileResponse.forAttachment(root, "/com.example.FooTest", true));
+        Files.copy(compressed, tmp.resolve("outside.txt.gz"));
+        assertNull(AttachmentFileResponse.forAttachment(root, "/../outside.txt", true));
+    }
+
+    @Test
+    void testSymbolicLinksOutOfTheStorageAreNotFollowed() throws Exception {
+        Path secret = tmp.resolve("secret.txt");
+        Files.writeString(secret, "top secret");
+        Files.writeString(tmp.resolve("secret.log.gz"), "top secret");
+        Path dir = Files.createDirectories(storage.resolve("com.example.FooTest"));
+        Files.writeString(dir.resolve("file.txt"), "attachment");
+        Files.createSymbolicLink(dir.resolve("leak.txt"), secret);
+        Files.createSymbolicLink(dir.resolve("secret.log.gz"), tmp.resolve("secret.log.gz"));
+        Files.createSymbolicLink(storage.resolve("outside"), tmp);
+        Files.createSymbolicLink(dir.resolve("inside.txt"), dir.resolve("file.txt"));
+
+        FilePath root = new FilePath(storage.toFile());
+        assertNull(AttachmentFileResponse.forAttachment(root, "/com.example.FooTest/leak.txt", true));
+        assertNull(AttachmentFileResponse.forAttachment(root, "/com.example.FooTest/secret.log", true));
+        assertNull(AttachmentFileResponse.forAttachment(root, "/outside/secret.txt", true));
+        assertEquals(dir.resolve("file.txt").toRealPath().toFile(),
+                AttachmentFileResponse.forAttachment(root, "/com.example.FooTest/inside.txt", true).getFile());
+    }
+
+    @Test
+    void testSmallAttachmentIsNotCompressed() throws Exception {
+        Path log = storage.resolve("small.log");
+        Files.writeString(log, "tiny");
+
+        TextAttachments.compress(log.toFile());
+
+        assertTrue(Files.exists(log));
+        assertFalse(Files.exists(storage.resolve("small.log.gz")));
+    }
+
+    @Test
+    void testLinkedAttachmentIsNotCompressed() throws Exception {
+        Path stored = tmp.resolve("stored.log");
+        Files.writeString(stored, "line of output\n".repeat(1000));
+        Path log = storage.resolve("linked.log");
+        Files.createLink(log, stored);
+
+        TextAttachments.compress(log.toFile());
+
+        assertTrue(Files.isSameFile(stored, log));
+        assertFalse(Files.exists(storage.resolve("linked.log.gz")));
+    }
+
+    @Test
+    void testAcceptEncoding() {
+        assertTrue(AttachmentFileResponse.acceptsGzip("gzip, deflate, br"));
+        assertTrue(AttachmentFileResponse.acceptsGzip("br;q=1.0, gzip;q=0.8"));
+        assertTrue(AttachmentFileResponse.acceptsGzip("*"));
+        assertFalse(AttachmentFileResponse.acceptsGzip(null));
+        assertFalse(AttachmentFileResponse.acceptsGzip("identity"));
+        assertFalse(AttachmentFileResponse.acceptsGzip("gzip;q=0"));
+        assertFalse(AttachmentFileResponse.acceptsGzip("gzip;q=0.000, *"));
+    }
+
+    @Test
+    void testRange() {
+        assertArrayEquals(new long[] {0, 99}, AttachmentFileResponse.parseRange("bytes=0-", 100));
+        assertArrayEquals(new long[] {10, 19}, AttachmentFileResponse.parseRange("bytes=10-19", 100));
+        assertArrayEquals(new long[] {90, 99}, AttachmentFileResponse.parseRange("bytes=90-200", 100));
+        assertArrayEquals(new long[] {80, 99}, AttachmentFileResponse.parseRange("bytes=-20", 100));
+        assertArrayEquals(new long[] {0, 99}, AttachmentFileResponse.parseRange("bytes=-200", 100));
+        assertArrayEquals(new long[0], AttachmentFileResponse.parseRange("bytes=100-", 100));
+        assertArrayEquals(new long[0], AttachmentFileResponse.parseRange("bytes=0-", 0));
+        assertNull(AttachmentFileResponse.parseRange("bytes=0-1,5-6", 100));
+        assertNull(AttachmentFileResponse.parseRange("bytes=20-10", 100));
+        assertNull(AttachmentFileResponse.parseRange("lines=1-2", 100));
+        assertNull(AttachmentFileResponse.parseRange("bytes=a-b", 100));
+    }
+
+    @Test
+    void testEntityTagMatching() {
+        assertTrue(AttachmentFileResponse.matches("\"a-1\"", "\"a-1\""));
+        assertTrue(AttachmentFileResponse.matches("W/\"a-1\"", "\"a-1\""));
+        assertTrue(AttachmentFileResponse.matches("\"b-2\", \"a-1\"", "\"a-1\""));
+        assertTrue(AttachmentFileResponse.matches("*", "\"a-1\""));
+        assertFalse(AttachmentFileResponse.matches("\"a-2\"", "\"a-1\""));
+    }
+}
@@ -0,0 +1,62 @@
+package hudson.plugins.junitattachments;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class AttachmentIndexTest {
+
+    @Test
+    void testLooksUpAttachments() {
+        AttachmentIndex index = AttachmentIndex.of(Map.of(
+                "com.example.B", Map.of("", List.of("suite.txt"), "testB", List.of("z.png", "a.png", "z.png")),
+                "com.example.A", Map.of("testA", List.of("a.png"))));
+
+        assertEquals(List.of("com.example.A", "com.example.B"), index.getClasses());
+        assertEquals(List.of("", "testB"), new ArrayList<>(index.getTests("com.example.B").keySet()));
+        // files keep their order, duplicates included
+        assertEquals(List.of("z.png", "a.png", "z.png"), index.getAttachments("com.example.B", "testB"));
+        assertEquals(List.of("a.png"), index.getAttachments("com.example.A", "testA"));
+
+        assertNull(index.getTests("com.example.C"));
+        assertNull(index.getTests("a.png"));
+        assertNull(index.getAttachments("com.example.A", "testB"));
+        assertNull(index.getAttachments("com.example.A", ""));
+    }
+
+    @Test
+    void testReturnsMutableCopies() {
+        AttachmentIndex index = AttachmentIndex.of(Map.of("A", Map.of("t", List.of("b", "a"))));
+        List<String> attachments = index.getAttachments("A", "t");
+        attachments.sort(null);
+        assertEquals(List.of("a", "b"), attachments);
+        assertEquals(List.of("b", "a"), index.getAttachments("A", "t"));
+        index.getTests("A").put("u", new ArrayList<>());
+        assertEquals(1, index.getTests("A").size());
+    }
+
+    @Test
+    void testInternsNames() {
+        AttachmentIndex first = AttachmentIndex.of(Map.of("A", Map.of("t", List.of(new String("file.txt")))));
+        AttachmentIndex second = AttachmentIndex.of(Map.of("A", Map.of("t", List.of(new String("file.txt")))));
+        assertSame(first.getAttachments("A", "t").get(0), second.getAttachments("A", "t").get(0));
+    }
+
+    @Test
+    void testConvertsBackToMap() {
+        Map<String, Map<String, List<String>>> attachments = new HashMap<>();
+        attachments.put("A", new HashMap<>(Map.of("t", Arrays.asList("x", "y"), "", List.of())));
+        attachments.put("B", new HashMap<>(Map.of("u", List.of("x"))));
+        assertEquals(attachments, AttachmentIndex.of(attachments).toMap());
+        assertTrue(AttachmentIndex.of(null).isEmpty());
+    }
+}
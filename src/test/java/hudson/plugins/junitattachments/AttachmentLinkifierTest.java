@@ -0,0 +1,64 @@
+package hudson.plugins.junitattachments;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class AttachmentLinkifierTest {
+
+    @Test
+    void testLinksAllOccurrences() {
+        assertEquals("see <a href=\"u/a.png\">a.png</a> and <a href=\"u/b.txt\">b.txt</a>, <a href=\"u/a.png\">a.png</a>",
+                new AttachmentLinkifier(Arrays.asList("a.png", "b.txt")).linkify("see a.png and b.txt, a.png", "u/"));
+    }
+
+    @Test
+    void testPrefersLongestName() {
+        assertEquals("<a href=\"u/file.txt\">file.txt</a> <a href=\"u/file\">file</a>",
+                new AttachmentLinkifier(Arrays.asList("file", "file.txt")).linkify("file.txt file", "u/"));
+    }
+
+    @Test
+    void testPrefersLeftmostOfOverlappingNames() {
+        assertEquals("x<a href=\"ab\">ab</a><a href=\"cd\">cd</a> <a href=\"bcd\">bcd</a>",
+                new AttachmentLinkifier(Arrays.asList("ab", "bcd", "cd")).linkify("xabcd bcd", ""));
+    }
+
+    @Test
+    void testDoesNotMatchWithinInsertedLinks() {
+        // replacing one name after the other used to link "a" within the link for "a.png" again
+        assertEquals("<a href=\"u/a.png\">a.png</a>",
+                new AttachmentLinkifier(Arrays.asList("a.png", "a")).linkify("a.png", "u/"));
+    }
+
+    @Test
+    void testReturnsTextWithoutNames() {
+        String text = "nothing to see here";
+        assertSame(text, new AttachmentLinkifier(Arrays.asList("a.png", "")).linkify(text, "u/"));
+        assertSame(text, new AttachmentLinkifier(Collections.emptyList()).linkify(text, "u/"));
+    }
+
+    @Test
+    void testLinearInOutputLength() {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            names.add("screenshot-" + i + ".png");
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100_000; i++) {
+            text.append("screenshot-").append(i).append(".png\n");
+        }
+        String result = assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> new AttachmentLinkifier(names).linkify(text.toString(), "u/"));
+        assertTrue(result.contains("<a href=\"u/screenshot-999.png\">screenshot-999.png</a>\nscreenshot-1000.png"));
+    }
+}
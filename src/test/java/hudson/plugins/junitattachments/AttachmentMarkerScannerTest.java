@@ -0,0 +1,63 @@
+package hudson.plugins.junitattachments;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class AttachmentMarkerScannerTest {
+
+    @Test
+    void testFindsMarkers() {
+        assertEquals(Arrays.asList("/tmp/a.png", "b.txt"), AttachmentMarkerScanner.findPaths(
+                "some output\n  [[ATTACHMENT|/tmp/a.png]]  \nmore output\n[[ATTACHMENT|b.txt|reserved]]"));
+    }
+
+    @Test
+    void testFindsSeveralMarkersOnOneLine() {
+        assertEquals(Arrays.asList("a", "b"), AttachmentMarkerScanner.findPaths("[[ATTACHMENT|a]] [[ATTACHMENT|b]]"));
+    }
+
+    @Test
+    void testIgnoresIncompleteMarkers() {
+        assertEquals(Collections.emptyList(), AttachmentMarkerScanner.findPaths("[[ATTACHMENT|a\n]]"));
+        assertEquals(Collections.emptyList(), AttachmentMarkerScanner.findPaths("[[ATTACHMENT|]]"));
+        assertEquals(Collections.emptyList(), AttachmentMarkerScanner.findPaths("[[ATTACHMENT|a|b"));
+        assertEquals(Collections.singletonList("c"), AttachmentMarkerScanner.findPaths("[[ATTACH [[[ATTACHMENT|c]]"));
+    }
+
+    @Test
+    void testFindsMarkersSpanningChunks() {
+        final List<String> paths = new ArrayList<>();
+        AttachmentMarkerScanner scanner = new AttachmentMarkerScanner((path, start, end) -> paths.add(path));
+        char[] text = "xx[[ATTACHMENT|some/file.txt]]yy".toCharArray();
+        for (int i = 0; i < text.length; i += 3) {
+            scanner.feed(text, i, Math.min(3, text.length - i));
+        }
+        assertEquals(Collections.singletonList("some/file.txt"), paths);
+    }
+
+    @Test
+    void testRemovesMarkers() {
+        assertEquals("before  after\n", AttachmentMarkerScanner.removeMarkers("before [[ATTACHMENT|a|b]] after\n"));
+        String text = "no markers here";
+        assertSame(text, AttachmentMarkerScanner.removeMarkers(text));
+    }
+
+    @Test
+    void testLongLinesWithoutClosingBrackets() {
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < 500_000; i++) {
+            output.append("[[ATTACHMENT|never-closed ");
+        }
+        assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> assertEquals(Collections.emptyList(), AttachmentMarkerScanner.findPaths(output)));
+    }
+}
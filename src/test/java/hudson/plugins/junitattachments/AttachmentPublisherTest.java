@@ -1,9 +1,13 @@
 package hudson.plugins.junitattachments;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import org.htmlunit.WebRequest;
+import org.htmlunit.WebResponse;
 import org.htmlunit.html.HtmlAnchor;
 import org.htmlunit.html.HtmlPage;
 import hudson.FilePath;
@@ -13,25 +17,45 @@ import hudson.model.BuildListener;
 import hudson.model.Descriptor;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.Node;
 import hudson.model.Result;
 import hudson.tasks.Builder;
 import hudson.tasks.junit.ClassResult;
 import hudson.tasks.junit.CaseResult;
 import hudson.tasks.junit.JUnitResultArchiver;
 import hudson.tasks.junit.PackageResult;
+import hudson.tasks.junit.SuiteResult;
 import hudson.tasks.junit.TestDataPublisher;
 import hudson.tasks.junit.TestResultAction;
 import hudson.tasks.test.TabulatedResult;
 import hudson.tasks.test.TestResult;
 import hudson.util.DescribableList;
+import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 
 import org.junit.jupiter.api.Test;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import javax.imageio.ImageIO;
 
 import org.jvnet.hudson.test.ExtractResourceSCM;
 import org.jvnet.hudson.test.JenkinsRule;
@@ -63,6 +87,45 @@ class AttachmentPublisherTest {
         assertEquals("test.foo.bar.DefaultIntegrationTest-output.txt", testCaseAttachments.get(1));
     }
 
+    @Test
+    void testSymlinksInWorkspaceAreNotCaptured(JenkinsRule j) throws Exception {
+        Path secret = j.jenkins.getRootDir().toPath().resolve("secret.txt");
+        Files.writeString(secret, "top secret");
+
+        for (Node node : new Node[] { null, j.createOnlineSlave() }) {
+            FreeStyleBuild b = getBuild(j, "workspace.zip", new AttachmentPublisher(), node,
+                    new SymlinkBuilder("test.foo.bar.DefaultIntegrationTest/leak", secret.toString()));
+            j.assertBuildStatus(Result.SUCCESS, b);
+
+            List<String> attachments = getClassResult(b.getAction(TestResultAction.class), "test.foo.bar", "DefaultIntegrationTest")
+                    .getTestAction(TestClassAttachmentTestAction.class).getAttachments().get("");
+            Collections.sort(attachments);
+            assertEquals(List.of("file", "test.foo.bar.DefaultIntegrationTest-output.txt"), attachments);
+
+            Path storage = new File(AttachmentPublisher.getAttachmentPath(b).getRemote()).toPath().resolve("test.foo.bar.DefaultIntegrationTest");
+            assertFalse(Files.exists(storage.resolve("leak"), LinkOption.NOFOLLOW_LINKS));
+            assertEquals(b.getWorkspace().child("test.foo.bar.DefaultIntegrationTest/file").readToString(),
+                    Files.readString(storage.resolve("file")));
+        }
+    }
+
+    @Test
+    void testReferencedSymlinksAreFollowed(JenkinsRule j) throws Exception {
+        for (Node node : new Node[] { null, j.createOnlineSlave() }) {
+            FreeStyleBuild b = getBuild(j, "workspace2.zip", new AttachmentPublisher(), node,
+                    new WriteFileBuilder("screenshots/login-username", "username"),
+                    new SymlinkBuilder("files/login-username", "../screenshots/login-username"));
+            j.assertLogNotContains("login-username was referenced from the test 'com.example.test.LoginTest' but it doesn't exist", b);
+
+            // the output of the test names the link, which is as good as naming the file it points to
+            TestCaseAttachmentTestAction action = getCaseAttachments(b, "LoginTest", "A-002 Enter the username\"");
+            assertEquals(List.of("login-username"), action.getAttachments());
+            Path file = new File(action.storage.getRemote()).toPath().resolve("login-username");
+            assertFalse(Files.isSymbolicLink(file));
+            assertEquals("username", Files.readString(file));
+        }
+    }
+
     @Test
     void testNoAttachmentsShownForPackage(JenkinsRule j) throws Exception {
         TestResultAction action = getTestResultActionForBuild(j, "workspace2.zip", Result.UNSTABLE);
@@ -192,6 +255,141 @@ class AttachmentPublisherTest {
         assertAttachmentsExist(cases.get(1), new String[] { "misc-something-1", "misc-something-2" });
     }
 
+    @Test
+    void testNoActionForTestsWithoutAttachments(JenkinsRule j) throws Exception {
+        FreeStyleBuild build = getBuild(j, "workspace2.zip");
+        j.assertBuildStatus(Result.UNSTABLE, build);
+
+        assertNull(getCaseAttachments(build, "MiscTest1", "doNothing"));
+        assertNull(getCaseAttachments(build, "MiscTest2", "doNothing"));
+        // the attachment of this one does not exist
+        assertNull(getCaseAttachments(build, "LoginTest", "A-002 Enter the username\""));
+        assertNotNull(getCaseAttachments(build, "LoginTest", "A-003 Enter the password\""));
+
+        // nor for a class the attachments know nothing about
+        TestResultAction action = build.getAction(TestResultAction.class);
+        ClassResult unknown = new ClassResult(action.getResult().byPackage(TEST_PACKAGE), "UnknownTest");
+        for (TestResultAction.Data data : action.getData()) {
+            assertEquals(List.of(), data.getTestAction(unknown));
+        }
+    }
+
+    @Test
+    void testAttachmentIndexKeptInBuildXmlByDefault(JenkinsRule j) throws Exception {
+        FreeStyleBuild build = getBuild(j, "workspace2.zip");
+        String xml = Files.readString(new File(build.getRootDir(), "build.xml").toPath());
+        assertTrue(xml.contains("<attachmentsMap>"), xml);
+        assertTrue(xml.contains("<string>signup-reset</string>"), xml);
+        assertFalse(xml.contains("<indexFile>"), xml);
+        assertFalse(AttachmentPublisher.getAttachmentPath(build).child(AttachmentIndexFiles.DIRECTORY).exists());
+    }
+
+    @Test
+    void testAttachmentIndexKeptOutOfBuildXml(JenkinsRule j) throws Exception {
+        AttachmentIndexFiles.ENABLED = true;
+        try {
+            assertAttachmentIndexKeptOutOfBuildXml(j);
+        } finally {
+            AttachmentIndexFiles.ENABLED = false;
+        }
+    }
+
+    private static void assertAttachmentIndexKeptOutOfBuildXml(JenkinsRule j) throws Exception {
+        FreeStyleBuild build = getBuild(j, "workspace2.zip");
+        File buildXml = new File(build.getRootDir(), "build.xml");
+        String xml = Files.readString(buildXml.toPath());
+        assertFalse(xml.contains("signup-reset"));
+        Matcher indexFile = Pattern.compile("<indexFile>(.+?)</indexFile>").matcher(xml);
+        assertTrue(indexFile.find());
+        File index = new File(AttachmentPublisher.getAttachmentPath(build).getRemote(), ".index/" + indexFile.group(1));
+        assertTrue(Files.readString(index.toPath()).contains("<string>signup-reset</string>"));
+
+        build.reload();
+        assertAttachmentsExist(getClassResult(build.getAction(TestResultAction.class), "SignupTest"), new String[] {
+                "signup-suite-1", "signup-suite-2", "signup-reset", "signup-login", "signup-username" });
+
+        // builds recorded by older versions have the attachments in build.xml
+        String attachmentsMap = Files.readString(index.toPath()).replaceFirst("(?s)^.*?<map>", "<attachmentsMap>")
+                .replaceFirst("(?s)</map>\\s*$", "</attachmentsMap>");
+        Files.writeString(buildXml.toPath(), xml.replace(indexFile.group(), attachmentsMap));
+        Files.delete(index.toPath());
+        build.reload();
+        assertAttachmentsExist(getClassResult(build.getAction(TestResultAction.class), "SignupTest"), new String[] {
+                "signup-suite-1", "signup-suite-2", "signup-reset", "signup-login", "signup-username" });
+
+        // and are moved out of it the next time the build is saved, not when looked at
+        assertEquals(xml.replace(indexFile.group(), attachmentsMap), Files.readString(buildXml.toPath()));
+        build.save();
+        xml = Files.readString(buildXml.toPath());
+        assertFalse(xml.contains("signup-reset"));
+        assertTrue(xml.contains("<indexFile>"));
+    }
+
+    @Test
+    void testAttachmentDataOfOlderVersionsMigratedWhenSaved(JenkinsRule j) throws Exception {
+        FreeStyleBuild build = getBuild(j, "workspace2.zip");
+
+        // replace what was recorded by what an older version recorded: the attachments listed in build.xml,
+        // and those of LoginTest stored in the class directory rather than in a directory per test
+        FilePath storage = AttachmentPublisher.getAttachmentPath(build);
+        storage.deleteRecursive();
+        FilePath loginTest = storage.child("com.example.test.LoginTest");
+        loginTest.child("login-reset").write("reset", "UTF-8");
+        loginTest.child("login-password").write("password", "UTF-8");
+        FilePath signupTest = storage.child("com.example.test.SignupTest");
+        signupTest.child("signup-suite-1").write("suite 1", "UTF-8");
+        signupTest.child("signup-suite-2").write("suite 2", "UTF-8");
+        FilePath signupReset = AttachmentPublisher.getAttachmentPath(storage, "com.example.test.SignupTest",
+                "A-001 Reset the application state");
+        signupReset.child("signup-reset").write("reset", "UTF-8");
+        Path buildXml = new File(build.getRootDir(), "build.xml").toPath();
+        try (InputStream in = AttachmentPublisherTest.class.getResourceAsStream("oldBuild.xml")) {
+            Files.copy(in, buildXml, StandardCopyOption.REPLACE_EXISTING);
+        }
+        build.reload();
+        String recorded = Files.readString(buildXml);
+
+        assertEquals(loginTest, getCaseAttachments(build, "LoginTest", "A-003 Enter the password\"").storage);
+        assertEquals(signupReset, getCaseAttachments(build, "SignupTest", "A-001 Reset the application state").storage);
+        assertAttachmentsExist(getClassResult(build.getAction(TestResultAction.class), "SignupTest"),
+                new String[] { "signup-suite-1", "signup-suite-2", "signup-reset" });
+
+        // looking at the attachments does not write anything
+        assertEquals(recorded, Files.readString(buildXml));
+        assertFalse(storage.child(AttachmentIndexFiles.DIRECTORY).exists());
+
+        // the next save records the layout, and keeps the attachments in build.xml
+        build.save();
+        String xml = Files.readString(buildXml);
+        assertTrue(xml.contains("<string>signup-reset</string>"), xml);
+        assertFalse(xml.contains("<indexFile>"), xml);
+        assertTrue(Pattern.compile("<classLevelStorage>\\s*<string>com.example.test.LoginTest</string>\\s*</classLevelStorage>")
+                .matcher(xml).find(), xml);
+
+        build.reload();
+        assertEquals(loginTest, getCaseAttachments(build, "LoginTest", "A-003 Enter the password\"").storage);
+        assertEquals(signupReset, getCaseAttachments(build, "SignupTest", "A-001 Reset the application state").storage);
+
+        // only the classes that are looked at are probed, so the layout is only known once all of them were
+        try (InputStream in = AttachmentPublisherTest.class.getResourceAsStream("oldBuild.xml")) {
+            Files.copy(in, buildXml, StandardCopyOption.REPLACE_EXISTING);
+        }
+        build.reload();
+        assertEquals(loginTest, getCaseAttachments(build, "LoginTest", "A-003 Enter the password\"").storage);
+        build.save();
+        xml = Files.readString(buildXml);
+        assertFalse(xml.contains("<classLevelStorage"), xml);
+    }
+
+    private static TestCaseAttachmentTestAction getCaseAttachments(FreeStyleBuild build, String className, String testName) {
+        for (CaseResult cr : getClassResult(build.getAction(TestResultAction.class), className).getChildren()) {
+            if (cr.getName().equals(testName)) {
+                return cr.getTestAction(TestCaseAttachmentTestAction.class);
+            }
+        }
+        throw new AssertionError("No test " + testName + " in " + className);
+    }
+
     @Test
     void testAttachmentsWithStrangeFileNames(JenkinsRule j) throws Exception {
         FreeStyleBuild build = getBuild(j, "workspace5.zip");
@@ -206,6 +404,419 @@ class AttachmentPublisherTest {
         assertNotNull(anchor3.click());
     }
 
+    @Test
+    void testAttachmentsFoundByScanningReportsOnAgent(JenkinsRule j) throws Exception {
+        AttachmentPublisher publisher = new AttachmentPublisher();
+        publisher.setScanReportsOnAgent(true);
+        TestResultAction action = getTestResultActionForBuild(j, "workspace2.zip", Result.UNSTABLE, publisher);
+
+        assertAttachmentsExist(getClassResult(action, "SignupTest"), new String[] { "signup-suite-1", "signup-suite-2",
+                "signup-reset", "signup-login", "signup-username" });
+        assertAttachmentsExist(getClassResult(action, "LoginTest"), new String[] { "login-reset", "login-password", "login-reset" });
+        assertAttachmentsExist(getClassResult(action, "MiscTest2"), new String[] { "misc-suite-3", "misc-suite-4",
+                "misc-suite-1", "misc-suite-2", "misc-something-1", "misc-something-2" });
+
+        List<TestResult> cases = new ArrayList<>(getClassResult(action, "MiscTest1").getChildren());
+        assertAttachmentsExist(cases.get(0), null);
+    }
+
+    @Test
+    void testAttachmentsCapturedConcurrently(JenkinsRule j) throws Exception {
+        AttachmentPublisher publisher = new AttachmentPublisher();
+        publisher.setCaptureThreads(3);
+        TestResultAction action = getTestResultActionForBuild(j, "workspace2.zip", Result.UNSTABLE, publisher);
+
+        assertAttachmentsExist(getClassResult(action, "SignupTest"), new String[] { "signup-suite-1", "signup-suite-2",
+                "signup-reset", "signup-login", "signup-username" });
+        assertAttachmentsExist(getClassResult(action, "LoginTest"), new String[] { "login-reset", "login-password", "login-reset" });
+        assertAttachmentsExist(getClassResult(action, "MiscTest2"), new String[] { "misc-suite-3", "misc-suite-4",
+                "misc-suite-1", "misc-suite-2", "misc-something-1", "misc-something-2" });
+    }
+
+    @Test
+    void testAttachmentsCapturedAsynchronously(JenkinsRule j) throws Exception {
+        AttachmentPublisher publisher = new AttachmentPublisher();
+        publisher.setCaptureAsynchronously(true);
+        FreeStyleBuild build = getBuild(j, "workspace.zip", publisher, j.createOnlineSlave());
+        j.assertLogContains("attachment files in the background", build);
+
+        // the names are known right away
+        TestClassAttachmentTestAction ata = getClassResult(build.getAction(TestResultAction.class), "test.foo.bar", "DefaultIntegrationTest")
+                .getTestAction(TestClassAttachmentTestAction.class);
+        List<String> attachments = ata.getAttachments().get("");
+        Collections.sort(attachments);
+        assertEquals(List.of("file", "test.foo.bar.DefaultIntegrationTest-output.txt"), attachments);
+
+        // the files arrive a little later, but before the build completes
+        assertFalse(AttachmentCaptures.isCapturing(build));
+        assertEquals("complete", build.getAction(AttachmentRunAction.class).getStatus());
+        FilePath storage = AttachmentPublisher.getAttachmentPath(build).child("test.foo.bar.DefaultIntegrationTest");
+        assertTrue(storage.child("file").exists());
+        assertTrue(storage.child("test.foo.bar.DefaultIntegrationTest-output.txt").exists());
+    }
+
+    @Test
+    void testFailedAsynchronousCaptureRecordedAsIncomplete(JenkinsRule j) throws Exception {
+        AttachmentPublisher publisher = new AttachmentPublisher();
+        publisher.setCaptureAsynchronously(true);
+        FreeStyleBuild build = getBuild(j, "workspace.zip", publisher, j.createOnlineSlave(),
+                new BlockStorageBuilder("test.foo.bar.DefaultIntegrationTest"));
+        j.assertLogContains("attachment files in the background", build);
+        j.assertLogContains("Failed to copy the attachments from the workspace, some of them are missing", build);
+
+        assertEquals("incomplete", build.getAction(AttachmentRunAction.class).getStatus());
+        TestClassAttachmentTestAction ata = getClassResult(build.getAction(TestResultAction.class), "test.foo.bar", "DefaultIntegrationTest")
+                .getTestAction(TestClassAttachmentTestAction.class);
+        assertTrue(ata.isIncomplete());
+        // and so it stays, also once the build is loaded again
+        assertTrue(Files.readString(new File(build.getRootDir(), "build.xml").toPath()).contains("<incomplete>true</incomplete>"));
+    }
+
+    @Test
+    void testCaptureStatisticsRecorded(JenkinsRule j) throws Exception {
+        FreeStyleBuild build = getBuild(j, "workspace.zip", new AttachmentPublisher(), j.createOnlineSlave());
+        j.assertLogContains("Captured attachments in", build);
+
+        try (JenkinsRule.WebClient wc = j.createWebClient()) {
+            JSONObject json = JSONObject.fromObject(wc.goTo(build.getUrl()
+                    + "junit-attachments/api/json?tree=status,statistics[phases[phase,files,bytes,roundTrips]]", "application/json")
+                    .getWebResponse().getContentAsString());
+            assertEquals("complete", json.getString("status"));
+            JSONArray phases = json.getJSONArray("statistics").getJSONObject(0).getJSONArray("phases");
+            Map<String, JSONObject> byName = new HashMap<>();
+            for (int i = 0; i < phases.size(); i++) {
+                byName.put(phases.getJSONObject(i).getString("phase"), phases.getJSONObject(i));
+            }
+            assertTrue(byName.get("REPORTS").getInt("files") > 0);
+            JSONObject transfer = byName.get("TRANSFER");
+            assertEquals(2, transfer.getInt("files"));
+            assertTrue(transfer.getLong("bytes") > 0);
+            assertTrue(transfer.getInt("roundTrips") > 0);
+
+            HtmlPage page = wc.goTo(build.getUrl() + "junit-attachments/");
+            assertTrue(page.asNormalizedText().contains("copy"), page.asNormalizedText());
+            assertNotNull(page.getAnchorByHref("-/downloadAll"));
+        }
+    }
+
+    @Test
+    void testReferencedAttachmentsResolvedInOneCallToTheAgent(JenkinsRule j) throws Exception {
+        FreeStyleBuild build = getBuild(j, "workspace2.zip", new AttachmentPublisher(), j.createOnlineSlave());
+        j.assertBuildStatus(Result.UNSTABLE, build);
+        j.assertLogContains("Attachment files/login-username was referenced from the test 'com.example.test.LoginTest' but it doesn't exist. Skipping.", build);
+
+        CaptureStatistics.PhaseStatistics existence = null;
+        for (CaptureStatistics.PhaseStatistics p : build.getAction(AttachmentRunAction.class).getStatistics().get(0).getPhases()) {
+            if (p.getPhase() == CaptureStatistics.Phase.EXISTENCE) {
+                existence = p;
+            }
+        }
+        assertNotNull(existence);
+        assertTrue(existence.getFiles() > 1);
+        assertEquals(1, existence.getRoundTrips());
+        assertAttachmentsExist(getClassResult(build.getAction(TestResultAction.class), "LoginTest"),
+                new String[] { "login-reset", "login-password", "login-reset" });
+    }
+
+    @Test
+    void testOnlyAttachmentsOfFailedTestsCaptured(JenkinsRule j) throws Exception {
+        AttachmentPublisher publisher = new AttachmentPublisher();
+        publisher.setCapturePolicy(CapturePolicy.FAILED);
+        TestResultAction action = getTestResultActionForBuild(j, "workspace2.zip", Result.UNSTABLE, publisher);
+
+        int captured = 0;
+        for (SuiteResult suite : action.getResult().getSuites()) {
+            boolean anyFailed = false;
+            for (CaseResult cr : suite.getCases()) {
+                TestCaseAttachmentTestAction ata = cr.getTestAction(TestCaseAttachmentTestAction.class);
+                if (cr.isFailed()) {
+                    anyFailed = true;
+                    captured += ata == null ? 0 : ata.getAttachments().size();
+                } else {
+                    assertNull(ata, cr.getFullName());
+                }
+            }
+            if (!anyFailed) {
+                for (String className : suite.getClassNames()) {
+                    int dot = className.lastIndexOf('.');
+                    ClassResult cr = getClassResult(action, className.substring(0, dot), className.substring(dot + 1));
+                    assertNull(cr.getTestAction(TestClassAttachmentTestAction.class), className);
+                }
+            }
+        }
+        assertTrue(captured > 0);
+    }
+
+    @Test
+    void testDeduplicatedAttachmentsAreLinkedFromTheJobStore(JenkinsRule j) throws Exception {
+        AttachmentPublisher publisher = new AttachmentPublisher();
+        publisher.setDeduplicateAttachments(true);
+        FreeStyleBuild first = getBuild(j, "workspace2.zip", publisher);
+        FreeStyleBuild second = first.getProject().scheduleBuild2(0).get();
+
+        for (FreeStyleBuild b : new FreeStyleBuild[] { first, second }) {
+            TestResultAction action = b.getAction(TestResultAction.class);
+            assertAttachmentsExist(getClassResult(action, "LoginTest"), new String[] { "login-reset", "login-password", "login-reset" });
+            assertAttachmentsExist(getClassResult(action, "MiscTest2"), new String[] { "misc-suite-3", "misc-suite-4",
+                    "misc-suite-1", "misc-suite-2", "misc-something-1", "misc-something-2" });
+        }
+
+        FilePath store = new FilePath(new File(first.getProject().getRootDir(), "junit-attachments-store"));
+        assertTrue(store.list("**/*").length > 0);
+        assertEquals(AttachmentPublisher.getAttachmentPath(first).list("**/*").length,
+                AttachmentPublisher.getAttachmentPath(second).list("**/*").length);
+    }
+
+    @Test
+    void testUnchangedAttachmentsAreLinkedFromThePreviousBuild(JenkinsRule j) throws Exception {
+        AttachmentPublisher publisher = new AttachmentPublisher();
+        publisher.setReuseUnchangedAttachments(true);
+        FreeStyleBuild first = getBuild(j, "workspace2.zip", publisher);
+        FreeStyleBuild second = first.getProject().scheduleBuild2(0).get();
+
+        assertAttachmentsExist(getClassResult(second.getAction(TestResultAction.class), "MiscTest2"), new String[] {
+                "misc-suite-3", "misc-suite-4", "misc-suite-1", "misc-suite-2", "misc-something-1", "misc-something-2" });
+
+        Path firstStorage = new File(AttachmentPublisher.getAttachmentPath(first).getRemote()).toPath();
+        Path secondStorage = new File(AttachmentPublisher.getAttachmentPath(second).getRemote()).toPath();
+        Map<String, String> digests = ChecksumManifest.read(secondStorage);
+        assertEquals(ChecksumManifest.read(firstStorage), digests);
+        assertTrue(!digests.isEmpty());
+        for (String path : digests.keySet()) {
+            assertTrue(Files.isSameFile(firstStorage.resolve(path), secondStorage.resolve(path)), path);
+        }
+    }
+
+    @Test
+    void testAttachmentsLinkedFromLocalWorkspace(JenkinsRule j) throws Exception {
+        AttachmentPublisher publisher = new AttachmentPublisher();
+        publisher.setLinkLocalAttachments(true);
+        FreeStyleBuild b = getBuild(j, "workspace2.zip", publisher);
+
+        assertAttachmentsExist(getClassResult(b.getAction(TestResultAction.class), "LoginTest"),
+                new String[] { "login-reset", "login-password", "login-reset" });
+
+        Path files = new File(b.getWorkspace().getRemote(), "files").toPath();
+        List<Path> captured = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(new File(AttachmentPublisher.getAttachmentPath(b).getRemote()).toPath())) {
+            walk.filter(Files::isRegularFile).forEach(captured::add);
+        }
+        assertTrue(!captured.isEmpty());
+        for (Path p : captured) {
+            assertTrue(Files.isSameFile(files.resolve(p.getFileName().toString()), p), p.toString());
+        }
+    }
+
+    @Test
+    void testTextAttachmentsCompressedWhenTransferredFromAgent(JenkinsRule j) throws Exception {
+        AttachmentPublisher publisher = new AttachmentPublisher();
+        publisher.setCompressTextAttachments(true);
+        FreeStyleBuild b = getBuild(j, "workspace.zip", publisher, j.createOnlineSlave());
+        j.assertBuildStatus(Result.SUCCESS, b);
+        j.assertLogContains("Compressed text attachments", b);
+
+        ClassResult cr = getClassResult(b.getAction(TestResultAction.class), "test.foo.bar", "DefaultIntegrationTest");
+        List<String> testCaseAttachments = cr.getTestAction(TestClassAttachmentTestAction.class).getAttachments().get("");
+        Collections.sort(testCaseAttachments);
+        assertEquals(List.of("file", "test.foo.bar.DefaultIntegrationTest-output.txt"), testCaseAttachments);
+    }
+
+    @Test
+    void testCompressedAttachmentServedWithAndWithoutGzip(JenkinsRule j) throws Exception {
+        String content = "line of output\n".repeat(1000);
+        AttachmentPublisher publisher = new AttachmentPublisher();
+        publisher.setStoreTextAttachmentsCompressed(true);
+        FreeStyleBuild build = getBuild(j, "workspace.zip", publisher, null,
+                new WriteFileBuilder("test.foo.bar.DefaultIntegrationTest/output.log", content));
+        FilePath storage = AttachmentPublisher.getAttachmentPath(build).child("test.foo.bar.DefaultIntegrationTest");
+        assertTrue(storage.child("output.log.gz").exists());
+        assertFalse(storage.child("output.log").exists());
+
+        URL url = new URL(j.getURL(), build.getUrl() + "testReport/test.foo.bar/DefaultIntegrationTest/attachments/output.log");
+        try (JenkinsRule.WebClient wc = j.createWebClient()) {
+            WebRequest identity = new WebRequest(url);
+            identity.setAdditionalHeader("Accept-Encoding", "identity");
+            WebResponse decompressed = wc.getPage(identity).getWebResponse();
+            assertNull(decompressed.getResponseHeaderValue("Content-Encoding"));
+            assertEquals(content, decompressed.getContentAsString());
+
+            WebRequest gzip = new WebRequest(url);
+            gzip.setAdditionalHeader("Accept-Encoding", "gzip");
+            WebResponse compressed = wc.getPage(gzip).getWebResponse();
+            assertEquals("gzip", compressed.getResponseHeaderValue("Content-Encoding"));
+            assertEquals(content, compressed.getContentAsString());
+        }
+    }
+
+    @Test
+    void testOversizedTextAttachmentKeptTruncated(JenkinsRule j) throws Exception {
+        String head = "first line of output\n";
+        String tail = "last line of output\n";
+        String content = head + "x".repeat(3 * 1024 * 1024) + tail;
+        AttachmentPublisher publisher = new AttachmentPublisher();
+        publisher.setMaxFileSize(1);
+        publisher.setTruncateOversizedText(true);
+        FreeStyleBuild build = getBuild(j, "workspace.zip", publisher, j.createOnlineSlave(),
+                new WriteFileBuilder("test.foo.bar.DefaultIntegrationTest/output.log", content));
+
+        j.assertLogContains("Kept only the first and last bytes of 1 text attachment files", build);
+        j.assertLogContains("  test.foo.bar.DefaultIntegrationTest/output.log (", build);
+
+        FilePath file = AttachmentPublisher.getAttachmentPath(build).child("test.foo.bar.DefaultIntegrationTest/output.log");
+        String kept = file.readToString();
+        int half = 512 * 1024;
+        assertEquals(content.substring(0, half), kept.substring(0, half));
+        assertEquals(content.substring(content.length() - half), kept.substring(kept.length() - half));
+        assertTrue(kept.contains("\n\n[... " + (content.length() - 2 * half) + " bytes truncated ...]\n\n"), "marker");
+        assertTrue(file.length() < content.length());
+        // the other attachments of the class were kept whole
+        assertEquals(build.getWorkspace().child("test.foo.bar.DefaultIntegrationTest/file").readToString(),
+                AttachmentPublisher.getAttachmentPath(build).child("test.foo.bar.DefaultIntegrationTest/file").readToString());
+    }
+
+    @Test
+    void testAttachmentServedWithRangeAndConditionalRequests(JenkinsRule j) throws Exception {
+        FreeStyleBuild build = getBuild(j, "workspace.zip");
+        URL url = new URL(j.getURL(), build.getUrl() + "testReport/test.foo.bar/DefaultIntegrationTest/attachments/file");
+
+        try (JenkinsRule.WebClient wc = j.createWebClient()) {
+            wc.setThrowExceptionOnFailingStatusCode(false);
+
+            WebResponse full = wc.getPage(new WebRequest(url)).getWebResponse();
+            assertEquals(200, full.getStatusCode());
+            assertEquals("1949", full.getResponseHeaderValue("Content-Length"));
+            assertEquals("bytes", full.getResponseHeaderValue("Accept-Ranges"));
+            String etag = full.getResponseHeaderValue("ETag");
+            assertNotNull(etag);
+
+            WebRequest range = new WebRequest(url);
+            range.setAdditionalHeader("Range", "bytes=100-199");
+            WebResponse partial = wc.getPage(range).getWebResponse();
+            assertEquals(206, partial.getStatusCode());
+            assertEquals("bytes 100-199/1949", partial.getResponseHeaderValue("Content-Range"));
+            assertEquals(full.getContentAsString().substring(100, 200), partial.getContentAsString());
+
+            WebRequest conditional = new WebRequest(url);
+            conditional.setAdditionalHeader("If-None-Match", etag);
+            assertEquals(304, wc.getPage(conditional).getWebResponse().getStatusCode());
+        }
+    }
+
+    @Test
+    void testSymlinksInStorageAreNotServed(JenkinsRule j) throws Exception {
+        Path secret = j.jenkins.getRootDir().toPath().resolve("secret.txt");
+        Files.writeString(secret, "top secret");
+        FreeStyleBuild build = getBuild(j, "workspace.zip");
+        // as older versions recreated them from the workspace
+        Path storage = new File(AttachmentPublisher.getAttachmentPath(build).getRemote()).toPath().resolve("test.foo.bar.DefaultIntegrationTest");
+        Files.createSymbolicLink(storage.resolve("leak"), secret);
+        Path image = j.jenkins.getRootDir().toPath().resolve("secret.png");
+        ImageIO.write(new BufferedImage(1600, 800, BufferedImage.TYPE_INT_RGB), "png", image.toFile());
+        Files.createSymbolicLink(storage.resolve("leak.png"), image);
+        Path output = storage.resolve("test.foo.bar.DefaultIntegrationTest-output.txt");
+        Files.delete(output);
+        Files.createSymbolicLink(output, secret);
+
+        try (JenkinsRule.WebClient wc = j.createWebClient()) {
+            wc.setThrowExceptionOnFailingStatusCode(false);
+            String attachments = build.getUrl() + "testReport/test.foo.bar/DefaultIntegrationTest/attachments/";
+
+            WebResponse leak = wc.getPage(new WebRequest(new URL(j.getURL(), attachments + "leak"))).getWebResponse();
+            assertTrue(leak.getStatusCode() >= 400, leak.getStatusMessage());
+            assertFalse(leak.getContentAsString().contains("top secret"));
+
+            WebResponse thumbnail = wc.getPage(new WebRequest(new URL(j.getURL(), attachments + "-/thumbnail/leak.png"))).getWebResponse();
+            assertEquals(404, thumbnail.getStatusCode());
+
+            WebResponse classZip = wc.getPage(new WebRequest(new URL(j.getURL(), attachments + "-/downloadAll"))).getWebResponse();
+            assertEquals(List.of("file"), getZipEntries(classZip));
+            WebResponse buildZip = wc.getPage(new WebRequest(new URL(j.getURL(),
+                    build.getUrl() + "junit-attachments/-/downloadAll"))).getWebResponse();
+            assertEquals(List.of("test.foo.bar.DefaultIntegrationTest/file"), getZipEntries(buildZip));
+        }
+    }
+
+    @Test
+    void testAttachmentsDownloadedAsZip(JenkinsRule j) throws Exception {
+        FreeStyleBuild build = getBuild(j, "workspace.zip");
+
+        try (JenkinsRule.WebClient wc = j.createWebClient()) {
+            WebResponse classZip = wc.getPage(new WebRequest(new URL(j.getURL(),
+                    build.getUrl() + "testReport/test.foo.bar/DefaultIntegrationTest/attachments/-/downloadAll"))).getWebResponse();
+            assertEquals("application/zip", classZip.getContentType());
+            assertEquals(List.of("file", "test.foo.bar.DefaultIntegrationTest-output.txt"), getZipEntries(classZip));
+
+            WebResponse buildZip = wc.getPage(new WebRequest(new URL(j.getURL(),
+                    build.getUrl() + "junit-attachments/-/downloadAll"))).getWebResponse();
+            assertEquals(List.of("test.foo.bar.DefaultIntegrationTest/file",
+                    "test.foo.bar.DefaultIntegrationTest/test.foo.bar.DefaultIntegrationTest-output.txt"), getZipEntries(buildZip));
+        }
+    }
+
+    @Test
+    void testThumbnailOfImageAttachment(JenkinsRule j) throws Exception {
+        FreeStyleBuild build = getBuild(j, "workspace.zip");
+        FilePath storage = AttachmentPublisher.getAttachmentPath(build).child("test.foo.bar.DefaultIntegrationTest");
+        BufferedImage image = new BufferedImage(1600, 800, BufferedImage.TYPE_INT_RGB);
+        try (OutputStream out = storage.child("screenshot.png").write()) {
+            ImageIO.write(image, "png", out);
+        }
+
+        try (JenkinsRule.WebClient wc = j.createWebClient()) {
+            WebResponse response = wc.getPage(new WebRequest(new URL(j.getURL(), build.getUrl()
+                    + "testReport/test.foo.bar/DefaultIntegrationTest/attachments/-/thumbnail/screenshot.png"))).getWebResponse();
+            assertEquals("image/png", response.getContentType());
+            BufferedImage thumbnail = ImageIO.read(response.getContentAsStream());
+            assertEquals(AttachmentThumbnails.SIZE, thumbnail.getWidth());
+            assertEquals(AttachmentThumbnails.SIZE / 2, thumbnail.getHeight());
+        }
+        assertEquals(1, new File(build.getRootDir(), "junit-attachments-thumbnails").list().length);
+    }
+
+    @Test
+    void testClassAttachmentsPagedAndFiltered(JenkinsRule j) throws Exception {
+        FreeStyleBuild build = getBuild(j, "workspace2.zip");
+        TestClassAttachmentTestAction ata = getClassResult(build.getAction(TestResultAction.class), "SignupTest")
+                .getTestAction(TestClassAttachmentTestAction.class);
+        List<String> all = new ArrayList<>();
+        for (List<String> files : ata.getAttachments().values()) {
+            all.addAll(files);
+        }
+
+        TestClassAttachmentTestAction.Page first = ata.getFirstPage();
+        assertEquals(all.size(), first.getTotal());
+        assertEquals(all.size(), first.getRows().size());
+
+        TestClassAttachmentTestAction.Page second = ata.getPage(null, null, null, 1, 2);
+        assertEquals(all.size(), second.getTotal());
+        assertEquals(2, second.getRows().size());
+        assertEquals(all.get(1), second.getRows().get(0).getFile());
+
+        TestClassAttachmentTestAction.Page reset = ata.getPage(null, "RESET", null, 0, 10);
+        assertEquals(1, reset.getTotal());
+        assertEquals("signup-reset", reset.getRows().get(0).getFile());
+        assertEquals(0, ata.getPage(null, null, "image", 0, 10).getTotal());
+
+        try (JenkinsRule.WebClient wc = j.createWebClient()) {
+            JSONObject json = JSONObject.fromObject(wc.goTo(build.getUrl()
+                    + "testReport/com.example.test/SignupTest/attachments/-/rows?file=reset", "application/json")
+                    .getWebResponse().getContentAsString()).getJSONObject("data");
+            assertEquals(1, json.getInt("total"));
+            assertEquals("signup-reset", json.getJSONArray("rows").getJSONObject(0).getString("file"));
+        }
+    }
+
+    private static List<String> getZipEntries(WebResponse response) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (ZipInputStream zip = new ZipInputStream(response.getContentAsStream())) {
+            for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                names.add(entry.getName());
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
     //-------------------------------------------------------------------------------------
 
     private static void runBuildAndAssertAttachmentsExist(JenkinsRule j, String className, String[] expectedFiles) throws Exception {
@@ -262,14 +873,29 @@ class AttachmentPublisherTest {
     }
 
     private static FreeStyleBuild getBuild(JenkinsRule j, String workspaceZip) throws Exception {
+        return getBuild(j, workspaceZip, new AttachmentPublisher());
+    }
+
+    private static FreeStyleBuild getBuild(JenkinsRule j, String workspaceZip, AttachmentPublisher publisher) throws Exception {
+        return getBuild(j, workspaceZip, publisher, null);
+    }
+
+    private static FreeStyleBuild getBuild(JenkinsRule j, String workspaceZip, AttachmentPublisher publisher, Node node,
+                                           Builder... builders) throws Exception {
         FreeStyleProject project = j.createFreeStyleProject();
+        if (node != null) {
+            project.setAssignedNode(node);
+        }
 
         DescribableList<TestDataPublisher, Descriptor<TestDataPublisher>> publishers =
 		        new DescribableList<>(project);
-        publishers.add(new AttachmentPublisher());
+        publishers.add(publisher);
 
         project.setScm(new ExtractResourceSCM(AttachmentPublisherTest.class.getResource(workspaceZip)));
         project.getBuildersList().add(new TouchBuilder());
+        for (Builder builder : builders) {
+            project.getBuildersList().add(builder);
+        }
         JUnitResultArchiver archiver = new JUnitResultArchiver("*.xml");
         archiver.setTestDataPublishers(publishers);
         project.getPublishersList().add(archiver);
@@ -279,7 +905,12 @@ class AttachmentPublisherTest {
 
     // Creates a job from the given workspace zip file, builds it and retrieves the TestResultAction
     private static TestResultAction getTestResultActionForBuild(JenkinsRule j, String workspaceZip, Result expectedStatus) throws Exception {
-        FreeStyleBuild b = getBuild(j, workspaceZip);
+        return getTestResultActionForBuild(j, workspaceZip, expectedStatus, new AttachmentPublisher());
+    }
+
+    private static TestResultAction getTestResultActionForBuild(JenkinsRule j, String workspaceZip, Result expectedStatus,
+                                                                AttachmentPublisher publisher) throws Exception {
+        FreeStyleBuild b = getBuild(j, workspaceZip, publisher);
         j.assertBuildStatus(expectedStatus, b);
 
         TestResultAction action = b.getAction(TestResultAction.class);
@@ -300,4 +931,59 @@ class AttachmentPublisherTest {
         }
     }
 
+    /** Puts a file where the attachments of a test class are to be stored, so copying them fails. */
+    public static final class BlockStorageBuilder extends Builder implements Serializable {
+        private final String className;
+
+        BlockStorageBuilder(String className) {
+            this.className = className;
+        }
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher,
+                BuildListener listener) throws InterruptedException,
+                IOException {
+            AttachmentPublisher.getAttachmentPath(build).child(className).write("", "UTF-8");
+            return true;
+        }
+    }
+
+    /** Writes a file in the workspace. */
+    public static final class WriteFileBuilder extends Builder implements Serializable {
+        private final String path;
+        private final String content;
+
+        WriteFileBuilder(String path, String content) {
+            this.path = path;
+            this.content = content;
+        }
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher,
+                BuildListener listener) throws InterruptedException,
+                IOException {
+            build.getWorkspace().child(path).write(content, "UTF-8");
+            return true;
+        }
+    }
+
+    /** Creates a symbolic link in the workspace. */
+    public static final class SymlinkBuilder extends Builder implements Serializable {
+        private final String path;
+        private final String target;
+
+        SymlinkBuilder(String path, String target) {
+            this.path = path;
+            this.target = target;
+        }
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher,
+                BuildListener listener) throws InterruptedException,
+                IOException {
+            build.getWorkspace().child(path).symlinkTo(target, listener);
+            return true;
+        }
+    }
+
 }
@@ -0,0 +1,102 @@
+package hudson.plugins.junitattachments;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AttachmentTransferTest {
+
+    private static final String DIGEST = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    @TempDir
+    Path tmp;
+
+    private final List<AttachmentTransfer.Entry> pending = List.of(
+            new AttachmentTransfer.Entry("/ws/reports/A", "A", true),
+            new AttachmentTransfer.Entry("/ws/screenshot.png", "A/t/screenshot.png", false));
+
+    @Test
+    void testDigestsOfFilesOfTheEntriesAreAccepted() throws Exception {
+        AttachmentTransfer.checkDigests(pending, List.of(
+                new AttachmentTransfer.FileDigest("A", "A/output.txt", "/ws/reports/A/output.txt", DIGEST),
+                new AttachmentTransfer.FileDigest("A", "A/sub/dir/trace.log", "/ws/reports/A/sub/dir/trace.log", DIGEST),
+                new AttachmentTransfer.FileDigest("A/t/screenshot.png", "A/t/screenshot.png", "/ws/screenshot.png", DIGEST)));
+    }
+
+    @Test
+    void testForgedDigestsAreRejected() {
+        // as a compromised agent might return them from ComputeDigests
+        String secret = "/var/jenkins_home/secrets/master.key";
+        assertForged(new AttachmentTransfer.FileDigest("A", "A/output.txt", secret, secret));
+        assertForged(new AttachmentTransfer.FileDigest("A", "A/output.txt", secret, "../../../secrets/master.key"));
+        assertForged(new AttachmentTransfer.FileDigest("A", "A/output.txt", secret, DIGEST.toUpperCase()));
+        assertForged(new AttachmentTransfer.FileDigest("A", "A/output.txt", secret, null));
+    }
+
+    @Test
+    void testForgedPathsAreRejected() {
+        String src = "/ws/reports/A/output.txt";
+        assertForged(new AttachmentTransfer.FileDigest("A", "A/../../../../config.xml", src, DIGEST));
+        assertForged(new AttachmentTransfer.FileDigest("A", "/var/jenkins_home/config.xml", src, DIGEST));
+        assertForged(new AttachmentTransfer.FileDigest("A", "A/./output.txt", src, DIGEST));
+        assertForged(new AttachmentTransfer.FileDigest("A", "A//output.txt", src, DIGEST));
+        assertForged(new AttachmentTransfer.FileDigest("A", "A\\..\\..\\config.xml", src, DIGEST));
+        // files of other entries, or of entries that do not exist
+        assertForged(new AttachmentTransfer.FileDigest("A", "B/output.txt", src, DIGEST));
+        assertForged(new AttachmentTransfer.FileDigest("A", "AB/output.txt", src, DIGEST));
+        assertForged(new AttachmentTransfer.FileDigest("B", "B/output.txt", src, DIGEST));
+        // a single file entry has exactly one file
+        assertForged(new AttachmentTransfer.FileDigest("A/t/screenshot.png", "A/t/other.png", src, DIGEST));
+        assertForged(new AttachmentTransfer.FileDigest("A/t/screenshot.png", "A/t/screenshot.png/x", src, DIGEST));
+    }
+
+    private void assertForged(AttachmentTransfer.FileDigest digest) {
+        assertThrows(IOException.class, () -> AttachmentTransfer.checkDigests(pending, List.of(digest)));
+    }
+
+    @Test
+    void testResolveStaysBelowTheDirectory() throws Exception {
+        Path storage = tmp.resolve("junit-attachments");
+        assertEquals(storage.resolve("A/t/screenshot.png"), AttachmentTransfer.resolve(storage, "A/t/screenshot.png"));
+        assertThrows(IOException.class, () -> AttachmentTransfer.resolve(storage, "../config.xml"));
+        assertThrows(IOException.class, () -> AttachmentTransfer.resolve(storage, "A/../../config.xml"));
+        assertThrows(IOException.class, () -> AttachmentTransfer.resolve(storage, tmp.resolve("config.xml").toString()));
+        assertThrows(IOException.class, () -> AttachmentTransfer.resolve(storage, ""));
+    }
+
+    @Test
+    void testManifestEntriesOutsideOfTheStorageAreIgnored() throws Exception {
+        // as an earlier build might have recorded them from what a compromised agent returned
+        Files.writeString(tmp.resolve(ChecksumManifest.FILE_NAME),
+                DIGEST + "  A/output.txt\n"
+                + DIGEST + "  ../../secrets/master.key\n"
+                + DIGEST + "  /var/jenkins_home/secrets/master.key\n"
+                + "/var/jenkins_home/secrets/master.key  A/t/screenshot.png\n");
+        assertEquals(Map.of("A/output.txt", DIGEST), ChecksumManifest.read(tmp));
+    }
+
+    @Test
+    void testForgedListingsAreRejected() throws Exception {
+        Map<String, AttachmentTransfer.Entry> entries = Map.of(
+                "A", pending.get(0), "A/t/screenshot.png", pending.get(1));
+        AttachmentTransfer.checkListing(entries, Map.of(
+                "A", List.of("output.txt", "sub/dir/trace.log"), "A/t/screenshot.png", List.of("")));
+        // as a compromised agent might return them from ListFiles, to have the controller compress other files
+        for (Map<String, List<String>> forged : List.of(
+                Map.of("A", List.of("../../../config.xml")),
+                Map.of("A", List.of("/var/jenkins_home/config.xml")),
+                Map.of("A", List.of("")),
+                Map.of("A/t/screenshot.png", List.of("../../config.xml")),
+                Map.of("B", List.of("output.txt")))) {
+            assertThrows(IOException.class, () -> AttachmentTransfer.checkListing(entries, forged));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package hudson.plugins.junitattachments;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks the work done on the test output while attachments are captured:
+ * finding attachment markers, and telling the output of a test case from the output of its suite.
+ */
+@JmhBenchmark
+public class CaptureBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Output {
+
+        /** Number of lines of output, every hundredth of which is an attachment marker. */
+        @Param({"1000", "100000", "1000000"})
+        public int lines;
+
+        String output;
+
+        /** Copies of the output, as {@code CaseResult} hands out for cases without output of their own. */
+        List<String> caseOutputs;
+
+        @Setup
+        public void setup() {
+            output = createOutput(lines);
+            caseOutputs = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                caseOutputs.add(i % 2 == 0 ? output : new String(output.toCharArray()));
+            }
+        }
+    }
+
+    static String createOutput(int lines) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            if (i % 100 == 0) {
+                b.append("[[ATTACHMENT|/workspace/target/screenshots/test-").append(i).append(".png]]\n");
+            } else {
+                b.append("2024-01-01 12:00:00 INFO  com.example.Service - processing request ").append(i).append('\n');
+            }
+        }
+        return b.toString();
+    }
+
+    @Benchmark
+    public List<String> findMarkers(Output state) {
+        return AttachmentMarkerScanner.findPaths(state.output);
+    }
+
+    @Benchmark
+    public int compareCaseOutputs(Output state) {
+        GetTestDataMethodObject.SuiteOutput suiteOutput = new GetTestDataMethodObject.SuiteOutput(state.output);
+        int shared = 0;
+        for (String caseOutput : state.caseOutputs) {
+            if (suiteOutput.isSharedBy(caseOutput)) {
+                shared++;
+            }
+        }
+        return shared;
+    }
+}
@@ -0,0 +1,65 @@
+package hudson.plugins.junitattachments;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ContentStoreTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void testLinkingLeavesStoredFileUnchanged() throws Exception {
+        ContentStore store = new ContentStore(tmp.resolve("store").toFile());
+        Path file = store.createIncomingDirectory().resolve("file");
+        Files.writeString(file, "content");
+        String digest = store.add(ContentStore.digest(file), file);
+
+        Path first = tmp.resolve("1/file");
+        store.link(digest, first);
+        FileTime modified = FileTime.fromMillis(1_000_000_000_000L);
+        Files.setLastModifiedTime(first, modified);
+
+        Path second = tmp.resolve("2/file");
+        store.link(digest, second);
+        assertEquals("content", Files.readString(second));
+        // the attachment of the first build did not change
+        assertEquals(modified, Files.getLastModifiedTime(first));
+    }
+
+    @Test
+    void testLinkingPrunedFileFails() throws Exception {
+        ContentStore store = new ContentStore(tmp.resolve("store").toFile());
+        Path file = store.createIncomingDirectory().resolve("file");
+        Files.writeString(file, "content");
+        String digest = store.add(ContentStore.digest(file), file);
+        assertTrue(store.contains(digest));
+
+        // as if the file was pruned right after it was found in the store
+        Files.delete(store.getRoot().resolve(digest.substring(0, 2)).resolve(digest));
+        assertThrows(NoSuchFileException.class, () -> store.link(digest, tmp.resolve("1/file")));
+    }
+
+    @Test
+    void testOnlyDigestsAreResolved() throws Exception {
+        Path secret = tmp.resolve("secret");
+        Files.writeString(secret, "top secret");
+        ContentStore store = new ContentStore(tmp.resolve("store").toFile());
+        assertThrows(IllegalArgumentException.class, () -> store.contains(secret.toString()));
+        assertThrows(IllegalArgumentException.class, () -> store.contains("../../secret"));
+        assertThrows(IllegalArgumentException.class, () -> store.link("../../secret", tmp.resolve("1/file")));
+        assertFalse(Files.exists(tmp.resolve("1/file")));
+        assertFalse(ContentStore.isDigest(ContentStore.digest(secret).toUpperCase()));
+        assertTrue(ContentStore.isDigest(ContentStore.digest(secret)));
+    }
+}
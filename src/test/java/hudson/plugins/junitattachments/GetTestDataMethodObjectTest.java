@@ -0,0 +1,51 @@
+package hudson.plugins.junitattachments;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class GetTestDataMethodObjectTest {
+
+    @Test
+    void testSuiteOutputIsRecognised() {
+        String suite = "[[ATTACHMENT|suite.txt]]\n";
+        GetTestDataMethodObject.SuiteOutput output = new GetTestDataMethodObject.SuiteOutput(suite);
+
+        assertTrue(output.isSharedBy(suite));
+        assertTrue(output.isSharedBy(new String(suite.toCharArray())));
+        assertFalse(output.isSharedBy("[[ATTACHMENT|other.txt]]\n"));
+        assertFalse(output.isSharedBy("[[ATTACHMENT|suite.txx]]\n"));
+        assertFalse(output.isSharedBy(""));
+
+        assertTrue(new GetTestDataMethodObject.SuiteOutput(null).isSharedBy(""));
+    }
+
+    // 5k cases sharing a suite stdout must not cost a full comparison per case
+    @Test
+    void testLargeSuiteIsComparedRarely() {
+        char[] chars = new char[1024 * 1024];
+        Arrays.fill(chars, 'x');
+        String suite = new String(chars);
+
+        // what the cases hand out: the suite output itself, an equal copy of it, or output of their own
+        // which only differs in a single character
+        String copy = new String(chars);
+        chars[chars.length / 3] = 'y';
+        String own = new String(chars);
+
+        GetTestDataMethodObject.SuiteOutput output = new GetTestDataMethodObject.SuiteOutput(suite);
+        int unique = 0;
+        for (int i = 0; i < 5000; i++) {
+            if (!output.isSharedBy(i % 100 == 0 ? own : i % 2 == 0 ? copy : suite)) {
+                unique++;
+            }
+        }
+        assertEquals(50, unique);
+        // the copy is compared once and remembered, only output of their own that looks alike is compared every time
+        assertEquals(1 + 50, output.comparisons);
+    }
+}
@@ -0,0 +1,128 @@
+package hudson.plugins.junitattachments;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import hudson.util.XStream2;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks the work done when test results with attachments are shown:
+ * looking up the attachments of a test, linking their names in the test output,
+ * and reading and writing the test data of a build.
+ */
+@JmhBenchmark
+public class RenderingBenchmark {
+
+    private static final XStream2 XSTREAM = new XStream2();
+
+    @State(Scope.Benchmark)
+    public static class Attachments {
+
+        /** Number of test classes, each with ten tests with three attachments each. */
+        @Param({"10", "1000", "10000"})
+        public int classes;
+
+        Map<String, Map<String, List<String>>> map;
+        AttachmentIndex index;
+        AttachmentPublisher.Data data;
+        String xml;
+        List<String> lookups;
+
+        @Setup
+        public void setup() {
+            map = new HashMap<>();
+            lookups = new ArrayList<>();
+            for (int c = 0; c < classes; c++) {
+                String className = "com.example.module" + c % 17 + ".SomeFeature" + c + "Test";
+                Map<String, List<String>> tests = new HashMap<>();
+                tests.put("", List.of(className + "-output.txt"));
+                for (int t = 0; t < 10; t++) {
+                    tests.put("testScenario" + t, List.of("screenshot-" + t + ".png", "page-" + t + ".html", "trace.log"));
+                }
+                map.put(className, tests);
+                lookups.add(className);
+            }
+            index = AttachmentIndex.of(map);
+            data = new AttachmentPublisher.Data(map, true, true, List.of());
+            xml = XSTREAM.toXML(data);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Output {
+
+        /** Number of attachments of the test. */
+        @Param({"3", "100", "1000"})
+        public int attachments;
+
+        /** Number of lines of output of the test. */
+        @Param({"1000", "100000"})
+        public int lines;
+
+        AttachmentLinkifier linkifier;
+        List<String> names;
+        String output;
+
+        @Setup
+        public void setup() {
+            names = new ArrayList<>();
+            for (int i = 0; i < attachments; i++) {
+                names.add("attachment-" + i + ".png");
+            }
+            linkifier = new AttachmentLinkifier(names);
+            StringBuilder b = new StringBuilder();
+            for (int i = 0; i < lines; i++) {
+                if (i % 50 == 0) {
+                    b.append("saved attachment-").append(i % attachments).append(".png\n");
+                } else {
+                    b.append("2024-01-01 12:00:00 INFO  com.example.Service - processing request ").append(i).append('\n');
+                }
+            }
+            output = b.toString();
+        }
+    }
+
+    @Benchmark
+    public int lookUpAttachments(Attachments state) {
+        int found = 0;
+        for (String className : state.lookups) {
+            found += state.index.getTests(className).size();
+            found += state.index.getAttachments(className, "testScenario7").size();
+        }
+        return found;
+    }
+
+    @Benchmark
+    public AttachmentIndex buildIndex(Attachments state) {
+        return AttachmentIndex.of(state.map);
+    }
+
+    @Benchmark
+    public String linkifyOutput(Output state) {
+        return state.linkifier.linkify(state.output, "/job/p/1/testReport/com/example/Test/test/attachments/");
+    }
+
+    @Benchmark
+    public String linkifyOutputWithNewLinkifier(Output state) {
+        // as done for every page view of a test
+        return new AttachmentLinkifier(state.names).linkify(state.output, "/job/p/1/testReport/com/example/Test/test/attachments/");
+    }
+
+    @Benchmark
+    public String writeData(Attachments state) {
+        return XSTREAM.toXML(state.data);
+    }
+
+    @Benchmark
+    public Object readData(Attachments state) {
+        return XSTREAM.fromXML(state.xml);
+    }
+}
@@ -0,0 +1,171 @@
+package hudson.plugins.junitattachments;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.Descriptor;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.tasks.junit.CaseResult;
+import hudson.tasks.junit.ClassResult;
+import hudson.tasks.junit.JUnitResultArchiver;
+import hudson.tasks.junit.PackageResult;
+import hudson.tasks.junit.TestAction;
+import hudson.tasks.junit.TestDataPublisher;
+import hudson.tasks.junit.TestResultAction;
+import hudson.util.DescribableList;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.jvnet.hudson.test.TestBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Benchmarks the work done for the test pages of a build with attachments:
+ * creating the attachment actions of test classes and tests, and linking the attachments in the test output.
+ * Unlike {@link RenderingBenchmark}, this runs a real build, so the attachments are looked up as they are for a page.
+ */
+@JmhBenchmark
+public class TestPageBenchmark {
+
+    public static class Build extends JmhBenchmarkState {
+
+        /** Number of test classes with ten tests each, only every other class having attachments. */
+        @Param({"10", "1000"})
+        public int classes;
+
+        AttachmentPublisher.Data data;
+        List<ClassResult> classResults;
+        List<CaseResult> caseResults;
+        /** The attachment actions of {@link #caseResults} that have attachments, along with their output. */
+        List<TestCaseAttachmentTestAction> actions;
+        List<String> outputs;
+
+        @Override
+        public void setup() throws Exception {
+            FreeStyleProject project = getJenkins().createProject(FreeStyleProject.class, "p");
+            project.getBuildersList().add(new ReportBuilder(classes));
+            DescribableList<TestDataPublisher, Descriptor<TestDataPublisher>> publishers =
+                    new DescribableList<>(project);
+            publishers.add(new AttachmentPublisher());
+            JUnitResultArchiver archiver = new JUnitResultArchiver("reports/*.xml");
+            archiver.setTestDataPublishers(publishers);
+            project.getPublishersList().add(archiver);
+            FreeStyleBuild build = project.scheduleBuild2(0).get();
+
+            TestResultAction action = build.getAction(TestResultAction.class);
+            for (TestResultAction.Data d : action.getData()) {
+                if (d instanceof AttachmentPublisher.Data) {
+                    data = (AttachmentPublisher.Data) d;
+                }
+            }
+            classResults = new ArrayList<>();
+            caseResults = new ArrayList<>();
+            actions = new ArrayList<>();
+            outputs = new ArrayList<>();
+            for (PackageResult p : action.getResult().getChildren()) {
+                for (ClassResult c : p.getChildren()) {
+                    classResults.add(c);
+                    for (CaseResult t : c.getChildren()) {
+                        caseResults.add(t);
+                        for (TestAction a : data.getTestAction(t)) {
+                            actions.add((TestCaseAttachmentTestAction) a);
+                            outputs.add(t.getStdout());
+                        }
+                    }
+                }
+            }
+            if (actions.size() != classes / 2 * 10) {
+                throw new IllegalStateException("Expected " + classes / 2 * 10 + " tests with attachments, got " + actions.size());
+            }
+        }
+    }
+
+    /** Writes a report per test class, and the attachments of every other class. */
+    private static final class ReportBuilder extends TestBuilder {
+        private final int classes;
+
+        ReportBuilder(int classes) {
+            this.classes = classes;
+        }
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                throws InterruptedException, IOException {
+            FilePath workspace = build.getWorkspace();
+            for (int c = 0; c < classes; c++) {
+                String packageName = "com.example.module" + c % 17;
+                String className = packageName + ".SomeFeature" + c + "Test";
+                boolean attached = c % 2 == 0;
+                StringBuilder report = new StringBuilder()
+                        .append("<testsuite name=\"").append(className).append("\" tests=\"10\">\n");
+                for (int t = 0; t < 10; t++) {
+                    report.append("  <testcase classname=\"").append(className)
+                            .append("\" name=\"testScenario").append(t).append("\" time=\"0.1\">\n")
+                            .append("    <system-out>");
+                    for (int i = 0; i < 100; i++) {
+                        report.append("2024-01-01 12:00:00 INFO  com.example.Service - processing request ")
+                                .append(i).append('\n');
+                    }
+                    if (attached) {
+                        String file = "screenshots/" + className + "/screenshot-" + t + ".png";
+                        workspace.child(file).write("png", "UTF-8");
+                        report.append("saved screenshot-").append(t).append(".png\n")
+                                .append("[[ATTACHMENT|").append(file).append("]]\n");
+                    }
+                    report.append("</system-out>\n  </testcase>\n");
+                }
+                report.append("</testsuite>\n");
+                workspace.child("reports/TEST-" + className + ".xml").write(report.toString(), "UTF-8");
+                if (attached) {
+                    workspace.child("reports/" + className + "/output.txt").write("output", "UTF-8");
+                }
+            }
+            return true;
+        }
+    }
+
+    @Benchmark
+    public int getClassActions(Build state) {
+        int actions = 0;
+        for (ClassResult c : state.classResults) {
+            actions += state.data.getTestAction(c).size();
+        }
+        return actions;
+    }
+
+    @Benchmark
+    public int getCaseActions(Build state) {
+        int actions = 0;
+        for (CaseResult t : state.caseResults) {
+            actions += state.data.getTestAction(t).size();
+        }
+        return actions;
+    }
+
+    @Benchmark
+    public int annotateOutput(Build state) {
+        int length = 0;
+        for (int i = 0; i < state.actions.size(); i++) {
+            length += state.actions.get(i).annotate(state.outputs.get(i)).length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    public int showTestPages(Build state) {
+        // a page view creates the actions of the test anew, then annotates its output
+        int length = 0;
+        for (CaseResult t : state.caseResults) {
+            for (TestAction a : state.data.getTestAction(t)) {
+                length += ((TestCaseAttachmentTestAction) a).annotate(t.getStdout()).length();
+            }
+        }
+        return length;
+    }
+}